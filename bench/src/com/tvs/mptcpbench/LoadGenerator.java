@@ -0,0 +1,375 @@
+package com.tvs.mptcpbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import com.tvs.mptcptypes.Histogram;
+
+/**
+ * NIO load generator used by {@link NamespaceBench}, one selector thread per
+ * side.
+ *
+ * <BR>
+ * Every connection starts with a 9 byte header: <i> <BR>
+ * byte mode ('B' bulk or 'R' request/response), int request size, int
+ * response size </i> <BR>
+ * In bulk mode the client streams data until the duration ends, then shuts
+ * its output down and the server answers with the 8 byte count of bytes it
+ * received, so the reported throughput is what actually arrived. In
+ * request/response mode every connection runs a closed loop of requests and
+ * the round trip times are recorded in a {@link Histogram}.
+ *
+ * <BR>
+ * Run as a separate process, usually inside a network namespace and under
+ * <b>mptcpize run</b>: <i> <BR>
+ * LoadGenerator server PORT <BR>
+ * LoadGenerator client HOST PORT bulk|rr CONNECTIONS SECONDS [REQUEST RESPONSE]
+ * </i> <BR>
+ * The client prints one line: <i> <BR>
+ * RESULT bytes=N millis=N requests=N p50=N p90=N p99=N p999=N max=N </i> <BR>
+ * with latencies in microseconds.
+ *
+ */
+public class LoadGenerator {
+	public static final byte BULK = 'B', REQUEST_RESPONSE = 'R';
+	private static final int HEADER = 9;
+	private static final int CHUNK = 64 * 1024;
+
+	/**
+	 * Per connection state of both sides
+	 */
+	private static class Connection {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER);
+		ByteBuffer out = null; // Data being written, null if none
+		byte mode;
+		int requestSize, responseSize;
+		long received = 0; // Bytes received after the header
+		long pending = 0; // Request or response bytes still missing
+		long owed = 0; // Server: responses not yet started
+		long sentAt = 0; // Client: request start time
+		boolean done = false; // Client: output shut down
+	}
+
+	private final Histogram latency = new Histogram();
+	private long bytes = 0, requests = 0;
+
+	/**
+	 * Runs the server until the process is killed
+	 *
+	 * @param port
+	 *          TCP Port
+	 * @throws IOException
+	 */
+	public void Serve(int port) throws IOException {
+		Selector selector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		ByteBuffer sink = ByteBuffer.allocateDirect(CHUNK);
+		System.out.println("READY");
+		System.out.flush();
+
+		while (true) {
+			selector.select();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (key.isAcceptable()) {
+						SocketChannel channel = server.accept();
+						if (channel == null)
+							continue;
+						channel.configureBlocking(false);
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						channel.register(selector, SelectionKey.OP_READ, new Connection());
+						continue;
+					}
+					SocketChannel channel = (SocketChannel) key.channel();
+					Connection c = (Connection) key.attachment();
+					if (key.isReadable())
+						ServerRead(key, channel, c, sink);
+					if (key.isValid() && key.isWritable())
+						ServerWrite(key, channel, c);
+				} catch (IOException e) {
+					key.channel().close();
+				}
+			}
+		}
+	}
+
+	private void ServerRead(SelectionKey key, SocketChannel channel, Connection c, ByteBuffer sink) throws IOException {
+		if (c.header.hasRemaining()) {
+			if (channel.read(c.header) < 0) {
+				channel.close();
+				return;
+			}
+			if (c.header.hasRemaining())
+				return;
+			c.header.flip();
+			c.mode = c.header.get();
+			c.requestSize = Math.max(1, c.header.getInt());
+			c.responseSize = Math.max(1, c.header.getInt());
+			c.pending = c.requestSize;
+		}
+		int n;
+		while ((n = channel.read(sink)) > 0) {
+			sink.clear();
+			c.received += n;
+			if (c.mode == REQUEST_RESPONSE) {
+				// Requests may arrive split or back to back
+				for (long left = n; left > 0;) {
+					long used = Math.min(left, c.pending);
+					left -= used;
+					c.pending -= used;
+					if (c.pending == 0) {
+						c.owed++;
+						c.pending = c.requestSize;
+					}
+				}
+			}
+		}
+		if (n < 0) {
+			if (c.mode == BULK) {
+				c.out = ByteBuffer.allocate(8);
+				c.out.putLong(0, c.received);
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				channel.close();
+			}
+			return;
+		}
+		if (c.owed > 0)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void ServerWrite(SelectionKey key, SocketChannel channel, Connection c) throws IOException {
+		while (true) {
+			if (c.out == null || !c.out.hasRemaining()) {
+				if (c.mode == BULK && c.out != null) {
+					// Byte count sent
+					channel.close();
+					return;
+				}
+				if (c.owed == 0) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				c.owed--;
+				if (c.out == null)
+					c.out = ByteBuffer.allocate(c.responseSize);
+				c.out.clear();
+			}
+			channel.write(c.out);
+			if (c.out.hasRemaining())
+				return;
+		}
+	}
+
+	/**
+	 * Runs the client
+	 *
+	 * @param host
+	 *          Server Address
+	 * @param port
+	 *          TCP Port
+	 * @param mode
+	 *          BULK or REQUEST_RESPONSE
+	 * @param connections
+	 *          Parallel connections
+	 * @param millis
+	 *          Duration in milliseconds
+	 * @param requestSize
+	 *          Request size in bytes (request/response only)
+	 * @param responseSize
+	 *          Response size in bytes (request/response only)
+	 * @return Elapsed milliseconds
+	 * @throws IOException
+	 */
+	public long Run(String host, int port, byte mode, int connections, long millis, int requestSize, int responseSize) throws IOException {
+		Selector selector = Selector.open();
+		ByteBuffer data = ByteBuffer.allocateDirect(Math.max(CHUNK, requestSize));
+		ByteBuffer sink = ByteBuffer.allocateDirect(CHUNK);
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		int open = 0;
+		for (int i = 0; i < connections; i++) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection c = new Connection();
+			c.mode = mode;
+			c.requestSize = requestSize;
+			c.responseSize = responseSize;
+			c.header.put(mode).putInt(requestSize).putInt(responseSize).flip();
+			channel.connect(address);
+			channel.register(selector, SelectionKey.OP_CONNECT, c);
+			open++;
+		}
+
+		long start = System.nanoTime();
+		long end = start + millis * 1000000L;
+		// Bulk connections get a few seconds to report what arrived
+		long deadline = end + 10000000000L;
+		while (open > 0 && System.nanoTime() < deadline) {
+			long now = System.nanoTime();
+			selector.select(Math.max(1, ((now < end ? end : deadline) - now) / 1000000L));
+			now = System.nanoTime();
+			boolean expired = now >= end;
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				Connection c = (Connection) key.attachment();
+				boolean finished;
+				try {
+					if (key.isConnectable()) {
+						channel.finishConnect();
+						key.interestOps(SelectionKey.OP_WRITE);
+						continue;
+					}
+					if (c.header.hasRemaining()) {
+						channel.write(c.header);
+						if (c.header.hasRemaining())
+							continue;
+						c.sentAt = System.nanoTime();
+					}
+					if (mode == BULK)
+						finished = ClientBulk(key, channel, c, data, expired);
+					else
+						finished = ClientRequest(key, channel, c, data, sink, expired);
+				} catch (IOException e) {
+					System.err.println("Connection failed: " + e);
+					finished = true;
+				}
+				if (finished) {
+					channel.close();
+					open--;
+				}
+			}
+			if (expired && mode == BULK) {
+				// Stop the connections that were not selected this round
+				for (SelectionKey key : selector.keys()) {
+					Connection c = (Connection) key.attachment();
+					SocketChannel channel = (SocketChannel) key.channel();
+					if (!key.isValid() || c.done || !channel.isConnected() || c.header.hasRemaining())
+						continue;
+					try {
+						ClientBulk(key, channel, c, data, true);
+					} catch (IOException e) {
+						channel.close();
+						open--;
+					}
+				}
+			}
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+		for (SelectionKey key : selector.keys())
+			key.channel().close();
+		selector.close();
+		return Math.min(elapsed, millis);
+	}
+
+	/**
+	 * @return True when the connection is finished
+	 */
+	private boolean ClientBulk(SelectionKey key, SocketChannel channel, Connection c, ByteBuffer data, boolean expired) throws IOException {
+		if (!c.done) {
+			if (!expired) {
+				ByteBuffer view = data.duplicate();
+				while (channel.write(view) > 0)
+					view.clear();
+				return false;
+			}
+			channel.shutdownOutput();
+			c.done = true;
+			c.out = ByteBuffer.allocate(8);
+			key.interestOps(SelectionKey.OP_READ);
+			return false;
+		}
+		if (!key.isReadable())
+			return false;
+		if (channel.read(c.out) < 0)
+			return true;
+		if (c.out.hasRemaining())
+			return false;
+		bytes += c.out.getLong(0);
+		return true;
+	}
+
+	/**
+	 * @return True when the connection is finished
+	 */
+	private boolean ClientRequest(SelectionKey key, SocketChannel channel, Connection c, ByteBuffer data, ByteBuffer sink, boolean expired)
+	    throws IOException {
+		if (c.pending == 0) {
+			// Sending a request
+			if (c.out == null) {
+				c.out = data.duplicate();
+				c.out.limit(c.requestSize);
+			}
+			channel.write(c.out);
+			if (c.out.hasRemaining())
+				return false;
+			c.out = null;
+			c.pending = c.responseSize;
+			key.interestOps(SelectionKey.OP_READ);
+			return false;
+		}
+		int n;
+		while (c.pending > 0 && (n = channel.read(sink)) > 0) {
+			sink.clear();
+			c.pending -= n;
+			bytes += n;
+		}
+		if (c.pending > 0)
+			return false;
+		long now = System.nanoTime();
+		latency.Record((now - c.sentAt) / 1000);
+		requests++;
+		if (expired)
+			return true;
+		c.sentAt = now;
+		key.interestOps(SelectionKey.OP_WRITE);
+		return false;
+	}
+
+	/**
+	 * Formats the result of the last client run
+	 *
+	 * @param millis
+	 *          Elapsed milliseconds
+	 * @return Result line
+	 */
+	public String GetResult(long millis) {
+		return "RESULT bytes=" + bytes + " millis=" + millis + " requests=" + requests + " p50=" + latency.GetQuantile(0.5) + " p90="
+		    + latency.GetQuantile(0.9) + " p99=" + latency.GetQuantile(0.99) + " p999=" + latency.GetQuantile(0.999) + " max=" + latency.GetMax();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2 && args[0].equals("server")) {
+			new LoadGenerator().Serve(Integer.parseInt(args[1]));
+		} else if (args.length >= 6 && args[0].equals("client")) {
+			LoadGenerator generator = new LoadGenerator();
+			byte mode = args[3].equals("rr") ? REQUEST_RESPONSE : BULK;
+			int request = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+			int response = args.length > 7 ? Integer.parseInt(args[7]) : 1;
+			long millis = generator.Run(args[1], Integer.parseInt(args[2]), mode, Integer.parseInt(args[4]), Long.parseLong(args[5]) * 1000, request,
+			    response);
+			System.out.println(generator.GetResult(millis));
+		} else {
+			System.err.println("Usage: LoadGenerator server PORT");
+			System.err.println("       LoadGenerator client HOST PORT bulk|rr CONNECTIONS SECONDS [REQUEST RESPONSE]");
+			System.exit(1);
+		}
+	}
+}
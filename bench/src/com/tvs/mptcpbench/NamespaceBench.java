@@ -0,0 +1,418 @@
+package com.tvs.mptcpbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.tvs.mptcpmanager.MPTCPProbe;
+import com.tvs.mptcpmanager.RouteManager;
+import com.tvs.mptcpmanager.RouteManager.ROUTE_TABLES;
+import com.tvs.mptcptypes.MPTCPCapabilities;
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * End to end multipath throughput bench on a single Linux box.
+ *
+ * <BR>
+ * Builds a client and a server network namespace joined by one veth pair per
+ * {@link Link}, each shaped with <b>tc netem</b> (rate, delay, loss) in both
+ * directions. The client namespace gets its policy routing from
+ * {@link RouteManager#InterfaceUp} itself, through a {@link RouteManager.Backend}
+ * that runs the commands with <b>ip -n</b>, the MPTCP sysctl from {@link MPTCPProbe} and one subflow endpoint
+ * per extra path. Every command is checked, so a topology that could not be
+ * built is never measured. Then {@link LoadGenerator} runs in both
+ * namespaces under <b>mptcpize</b> and the result is reported as aggregate
+ * throughput, per path split (from the veth counters) and latency
+ * percentiles.
+ *
+ * <BR>
+ * Needs root, iproute2 with <b>ip mptcp</b>, tc, mptcpize and an upstream
+ * MPTCP kernel: <i> <BR>
+ * NamespaceBench [bulk|rr] [CONNECTIONS] [SECONDS] </i>
+ *
+ * <BR>
+ * The bench lives in its own source tree, bench/src, so it is not packaged
+ * with the library; it is built with a desktop JDK against the library
+ * classes.
+ *
+ */
+public class NamespaceBench {
+	public static final String CLIENT = "mptcpbench-cli", SERVER = "mptcpbench-srv";
+	public static final int PORT = 5201;
+
+	/**
+	 * A shaped path between the namespaces
+	 */
+	public static class Link {
+		public static final Link ETHERNET = new Link("ethernet", ROUTE_TABLES.ETHERNET, "100mbit", 1, 0);
+		public static final Link WIRELESS = new Link("wireless", ROUTE_TABLES.WIRELESS, "50mbit", 10, 0.1);
+		public static final Link MODEM = new Link("modem", ROUTE_TABLES.MODEM, "10mbit", 40, 0.5);
+
+		public final String Name;
+		public final ROUTE_TABLES Table;
+		public final String Rate; // tc rate, example: 100mbit
+		public final int Delay; // One way delay in milliseconds
+		public final double Loss; // Loss percentage
+
+		/**
+		 * Initializes a Link
+		 *
+		 * @param name
+		 *          Path Name
+		 * @param table
+		 *          Routing Table used in the client namespace
+		 * @param rate
+		 *          tc rate, example: 100mbit
+		 * @param delay
+		 *          One way delay in milliseconds
+		 * @param loss
+		 *          Loss percentage
+		 */
+		public Link(String name, ROUTE_TABLES table, String rate, int delay, double loss) {
+			Name = name;
+			Table = table;
+			Rate = rate;
+			Delay = delay;
+			Loss = loss;
+		}
+	}
+
+	/**
+	 * Result of a bench run
+	 */
+	public static class Report {
+		public final long Bytes; // Bytes delivered
+		public final long Millis; // Run duration
+		public final long Requests; // Requests completed (request/response)
+		public final long P50, P90, P99, P999, Max; // Latency in microseconds
+		public final Map<String, Long> PathBytes; // Bytes per link, both directions
+
+		Report(Map<String, String> result, Map<String, Long> pathBytes) {
+			Bytes = Value(result, "bytes");
+			Millis = Value(result, "millis");
+			Requests = Value(result, "requests");
+			P50 = Value(result, "p50");
+			P90 = Value(result, "p90");
+			P99 = Value(result, "p99");
+			P999 = Value(result, "p999");
+			Max = Value(result, "max");
+			PathBytes = pathBytes;
+		}
+
+		/**
+		 * @return Aggregate throughput in bits per second
+		 */
+		public double GetThroughput() {
+			return Millis == 0 ? 0 : Bytes * 8000.0 / Millis;
+		}
+
+		public String toString() {
+			long total = 0;
+			for (long b : PathBytes.values())
+				total += b;
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Throughput: %.2f Mbit/s (%d bytes in %d ms)\n", GetThroughput() / 1e6, Bytes, Millis));
+			for (Map.Entry<String, Long> e : PathBytes.entrySet())
+				sb.append(String.format("\t%s: %d bytes (%.1f%%)\n", e.getKey(), e.getValue(), total == 0 ? 0 : e.getValue() * 100.0 / total));
+			if (Requests > 0)
+				sb.append(String.format("Requests: %d p50: %dus p90: %dus p99: %dus p99.9: %dus max: %dus\n", Requests, P50, P90, P99, P999, Max));
+			return sb.toString();
+		}
+
+		private static long Value(Map<String, String> result, String key) {
+			String v = result.get(key);
+			return v == null ? 0 : Long.parseLong(v);
+		}
+	}
+
+	private final List<Link> links = new ArrayList<Link>();
+
+	/**
+	 * Adds a path, in order: the first one carries the initial subflow
+	 *
+	 * @param link
+	 *          The Link
+	 * @return this
+	 */
+	public NamespaceBench AddLink(Link link) {
+		links.add(link);
+		return this;
+	}
+
+	/**
+	 * Builds the namespaces, links, routing and MPTCP configuration. Leftovers
+	 * of a previous run are removed first.
+	 *
+	 * @throws IOException
+	 *           If a step fails or the kernel has no upstream MPTCP
+	 */
+	public void Setup() throws IOException {
+		MPTCPCapabilities caps = MPTCPProbe.GetCapabilities();
+		if (caps.KernelFlavor != MPTCPCapabilities.Flavor.UPSTREAM)
+			throw new IOException("Upstream MPTCP kernel required, found " + caps.Version);
+		if (links.isEmpty())
+			throw new IOException("No links");
+		Teardown();
+		try {
+			Build(caps);
+		} catch (IOException e) {
+			Teardown();
+			throw e;
+		}
+	}
+
+	private void Build(MPTCPCapabilities caps) throws IOException {
+		Exec("ip", "netns", "add", CLIENT);
+		Exec("ip", "netns", "add", SERVER);
+		Exec("ip", "-n", CLIENT, "link", "set", "lo", "up");
+		Exec("ip", "-n", SERVER, "link", "set", "lo", "up");
+		for (String ns : new String[] { CLIENT, SERVER }) {
+			Exec("ip", "netns", "exec", ns, "sysctl", "-qw", caps.EnabledSysctl + "=1");
+			Exec("ip", "netns", "exec", ns, "sysctl", "-qw", "net.ipv4.conf.all.rp_filter=0");
+			Exec("ip", "netns", "exec", ns, "sysctl", "-qw", "net.ipv4.conf.default.rp_filter=0");
+		}
+
+		for (int i = 0; i < links.size(); i++) {
+			Link link = links.get(i);
+			String cdev = ClientDevice(i), sdev = "bs" + i;
+			Exec("ip", "link", "add", cdev, "netns", CLIENT, "type", "veth", "peer", "name", sdev, "netns", SERVER);
+			Exec("ip", "-n", CLIENT, "addr", "add", ClientAddress(i) + "/24", "dev", cdev);
+			Exec("ip", "-n", SERVER, "addr", "add", ServerAddress(i) + "/24", "dev", sdev);
+			Exec("ip", "-n", CLIENT, "link", "set", cdev, "up");
+			Exec("ip", "-n", SERVER, "link", "set", sdev, "up");
+			Shape(CLIENT, cdev, link);
+			Shape(SERVER, sdev, link);
+		}
+
+		// The manager's own policy routing, run inside the client namespace
+		ClientBackend backend = new ClientBackend();
+		RouteManager.SetBackend(backend);
+		try {
+			for (int i = 0; i < links.size(); i++) {
+				NetworkInterface iface = new NetworkInterface(ClientDevice(i));
+				iface.IPAddress = ClientAddress(i);
+				iface.NetworkMask = "255.255.255.0";
+				if (!RouteManager.InterfaceUp(String.valueOf(links.get(i).Table.num), iface, ServerAddress(i)))
+					throw new IOException("Could not bring up " + links.get(i).Name + ": " + backend.error);
+			}
+			if (!RouteManager.AddDefaultHop(ServerAddress(0), ClientDevice(0)))
+				throw new IOException("Could not add the default hop: " + backend.error);
+		} finally {
+			RouteManager.SetBackend(null);
+		}
+
+		String max = String.valueOf(Math.min(8, links.size() * 2));
+		Exec("ip", "-n", CLIENT, "mptcp", "limits", "set", "subflow", max, "add_addr_accepted", max);
+		Exec("ip", "-n", SERVER, "mptcp", "limits", "set", "subflow", max, "add_addr_accepted", max);
+		for (int i = 1; i < links.size(); i++)
+			Exec("ip", "-n", CLIENT, "mptcp", "endpoint", "add", ClientAddress(i), "dev", ClientDevice(i), "subflow");
+	}
+
+	/**
+	 * Runs the load generator between the namespaces
+	 *
+	 * @param requestResponse
+	 *          True for request/response, false for bulk transfer
+	 * @param connections
+	 *          Parallel connections
+	 * @param seconds
+	 *          Duration
+	 * @param requestSize
+	 *          Request size in bytes (request/response only)
+	 * @param responseSize
+	 *          Response size in bytes (request/response only)
+	 * @return Bench Report
+	 * @throws IOException
+	 */
+	public Report Run(boolean requestResponse, int connections, int seconds, int requestSize, int responseSize) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String cp = System.getProperty("java.class.path");
+		Process server = new ProcessBuilder("ip", "netns", "exec", SERVER, "mptcpize", "run", java, "-cp", cp, LoadGenerator.class.getName(), "server",
+		    String.valueOf(PORT)).redirectErrorStream(true).start();
+		try {
+			BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream()));
+			String line = out.readLine();
+			if (line == null || !line.equals("READY"))
+				throw new IOException("Load server failed to start: " + line);
+			Discard(out);
+
+			Map<String, Long> before = ReadCounters();
+			String result = Exec("ip", "netns", "exec", CLIENT, "mptcpize", "run", java, "-cp", cp, LoadGenerator.class.getName(), "client",
+			    ServerAddress(0), String.valueOf(PORT), requestResponse ? "rr" : "bulk", String.valueOf(connections), String.valueOf(seconds),
+			    String.valueOf(requestSize), String.valueOf(responseSize));
+			Map<String, Long> after = ReadCounters();
+
+			Map<String, String> values = new HashMap<String, String>();
+			for (String l : result.split("\n")) {
+				if (!l.startsWith("RESULT "))
+					continue;
+				for (String field : l.substring(7).split(" ")) {
+					int eq = field.indexOf('=');
+					if (eq > 0)
+						values.put(field.substring(0, eq), field.substring(eq + 1));
+				}
+			}
+			if (values.isEmpty())
+				throw new IOException("Load client failed: " + result);
+
+			Map<String, Long> pathBytes = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < links.size(); i++) {
+				Long b = before.get(ClientDevice(i)), a = after.get(ClientDevice(i));
+				pathBytes.put(links.get(i).Name, a == null || b == null ? 0 : a - b);
+			}
+			return new Report(values, pathBytes);
+		} finally {
+			server.destroy();
+		}
+	}
+
+	/**
+	 * Reads and drops the rest of a process output on its own thread, so the
+	 * process never blocks on a full pipe
+	 */
+	private static void Discard(final BufferedReader out) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (out.readLine() != null) {
+						// Do Nothing
+					}
+				} catch (IOException e) {
+					// Process ended
+				}
+			}
+		}, "NamespaceBench-Server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Runs the RouteManager ip commands in the client namespace, checked. The
+	 * last failure is kept since RouteManager only reports success.
+	 */
+	private static class ClientBackend implements RouteManager.Backend {
+		volatile String error = "";
+
+		public String CallIP(String args) throws Exception {
+			List<String> cmd = new ArrayList<String>(Arrays.asList("ip", "-n", CLIENT));
+			cmd.addAll(Arrays.asList(args.trim().split("\\s+")));
+			try {
+				return Exec(cmd.toArray(new String[cmd.size()]));
+			} catch (IOException e) {
+				error = e.getMessage();
+				throw e;
+			}
+		}
+
+		public String GetIFaceGateway(String iface) {
+			return ServerAddress(Integer.parseInt(iface.substring(2)));
+		}
+
+		public String GetIFaceIP(String iface) {
+			return ClientAddress(Integer.parseInt(iface.substring(2)));
+		}
+	}
+
+	/**
+	 * Removes the namespaces, which also removes their links, routes and
+	 * endpoints
+	 */
+	public void Teardown() {
+		for (String ns : new String[] { CLIENT, SERVER }) {
+			try {
+				Exec("ip", "netns", "del", ns);
+			} catch (IOException e) {
+				// Do Nothing, not there
+			}
+		}
+	}
+
+	private static void Shape(String ns, String dev, Link link) throws IOException {
+		List<String> cmd = new ArrayList<String>(Arrays.asList("ip", "netns", "exec", ns, "tc", "qdisc", "add", "dev", dev, "root", "netem", "rate",
+		    link.Rate, "delay", link.Delay + "ms"));
+		if (link.Loss > 0)
+			cmd.addAll(Arrays.asList("loss", link.Loss + "%"));
+		Exec(cmd.toArray(new String[cmd.size()]));
+	}
+
+	/**
+	 * Reads the RX + TX byte counters of the client namespace devices
+	 */
+	private static Map<String, Long> ReadCounters() throws IOException {
+		Map<String, Long> counters = new HashMap<String, Long>();
+		String[] lines = Exec("ip", "netns", "exec", CLIENT, "cat", "/proc/net/dev").split("\n");
+		for (String line : lines) {
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				continue;
+			String[] fields = line.substring(colon + 1).trim().split("\\s+");
+			if (fields.length < 9)
+				continue;
+			// rx_bytes is the first column, tx_bytes the ninth
+			counters.put(line.substring(0, colon).trim(), Long.parseLong(fields[0]) + Long.parseLong(fields[8]));
+		}
+		return counters;
+	}
+
+	private static String ClientDevice(int i) {
+		return "bc" + i;
+	}
+
+	private static String ClientAddress(int i) {
+		return "10." + (100 + i) + ".0.1";
+	}
+
+	private static String ServerAddress(int i) {
+		return "10." + (100 + i) + ".0.2";
+	}
+
+	/**
+	 * Runs a command and checks its exit status
+	 *
+	 * @return Output (stdout and stderr)
+	 * @throws IOException
+	 *           If the command fails
+	 */
+	private static String Exec(String... cmd) throws IOException {
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		StringBuilder data = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				data.append(line).append('\n');
+			int status = p.waitFor();
+			if (status != 0)
+				throw new IOException(Arrays.toString(cmd) + " exited with " + status + ": " + data.toString().trim());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Do Nothing
+			}
+		}
+		return data.toString();
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean rr = args.length > 0 && args[0].equals("rr");
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		NamespaceBench bench = new NamespaceBench().AddLink(Link.ETHERNET).AddLink(Link.WIRELESS).AddLink(Link.MODEM);
+		try {
+			bench.Setup();
+			System.out.print(bench.Run(rr, connections, seconds, 100, 2000));
+		} finally {
+			bench.Teardown();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.InterfaceAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Kernel sourced interface addresses and gateways.
+ *
+ * <BR>
+ * One refresh reads every interface at once: addresses, prefixes, broadcasts
+ * and indexes from {@link java.net.NetworkInterface} (no process is started)
+ * and gateways from <b>/proc/net/route</b>. Only when an addressed interface
+ * has no gateway in the main table, as with per network tables, or the proc
+ * file cannot be read, a single <b>ip -4 route show table all</b> dump is
+ * read. The result is kept keyed by interface index until
+ * {@link #Invalidate()} is called, usually from change events (see
+ * {@link #StartMonitor()}), so lookups are a couple of map reads. A refresh
+ * that fails is not kept.
+ * The DHCP properties are only used for interfaces the kernel knows nothing
+ * about.
+ *
+ * <BR>
+ * Most callers should use the shared instance from {@link #GetDefault()}.
+ *
+ */
+public class AddressResolver {
+	private static final int RTF_UP = 0x1, RTF_GATEWAY = 0x2;
+	private static final AddressResolver DEFAULT = new AddressResolver();
+
+	/**
+	 * Addressing of one interface
+	 */
+	public static class Entry {
+		public final int Index; // Interface Index
+		public final String Device; // Device
+		public final String IPAddress; // IP Address, empty if none
+		public final String NetworkMask; // Network Mask, empty if none
+		public final String Broadcast; // Network Broadcast, empty if none
+		public final String Gateway; // Gateway Address, empty if unknown
+
+		Entry(int index, String device, String ipAddress, String networkMask, String broadcast, String gateway) {
+			Index = index;
+			Device = device;
+			IPAddress = ipAddress;
+			NetworkMask = networkMask;
+			Broadcast = broadcast;
+			Gateway = gateway;
+		}
+
+		Entry WithGateway(String gateway) {
+			return new Entry(Index, Device, IPAddress, NetworkMask, Broadcast, gateway);
+		}
+	}
+
+	/**
+	 * Immutable result of a refresh
+	 */
+	private static class State {
+		final Map<Integer, Entry> byIndex;
+		final Map<String, Integer> indexes;
+		final long time, generation;
+
+		State(Map<Integer, Entry> byIndex, Map<String, Integer> indexes, long time, long generation) {
+			this.byIndex = byIndex;
+			this.indexes = indexes;
+			this.time = time;
+			this.generation = generation;
+		}
+	}
+
+	private final AtomicLong generation = new AtomicLong();
+	private volatile State state = null;
+	private volatile long maxAge = 60000;
+	private Process monitor = null;
+
+	/**
+	 * @return Shared AddressResolver
+	 */
+	public static AddressResolver GetDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Sets how long a refresh is trusted when no change event arrives. Change
+	 * events invalidate it before that.
+	 *
+	 * @param millis
+	 *          Maximum age in milliseconds
+	 */
+	public void SetMaxAge(long millis) {
+		maxAge = millis;
+	}
+
+	/**
+	 * Gets the addressing of an interface
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @return Entry or null if the kernel has no such interface
+	 */
+	public Entry Get(String iface) {
+		State s = Current();
+		Integer index = s.indexes.get(iface);
+		return index == null ? null : s.byIndex.get(index);
+	}
+
+	/**
+	 * Gets the addressing of an interface by index
+	 *
+	 * @param index
+	 *          Interface Index
+	 * @return Entry or null if the kernel has no such interface
+	 */
+	public Entry Get(int index) {
+		return Current().byIndex.get(index);
+	}
+
+	/**
+	 * Finds the interface that holds an address
+	 *
+	 * @param ip
+	 *          IP Address
+	 * @return Entry or null if no interface has it
+	 */
+	public Entry FindByAddress(String ip) {
+		for (Entry e : Current().byIndex.values())
+			if (e.IPAddress.equals(ip))
+				return e;
+		return null;
+	}
+
+	/**
+	 * Gets an interface gateway
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @return Gateway Address, empty if unknown
+	 */
+	public String GetGateway(String iface) {
+		Entry e = Get(iface);
+		if (e != null && !e.Gateway.isEmpty())
+			return Lookup("kernel", e.Gateway);
+		return Lookup("getprop", Tools.GetProp("dhcp." + iface + ".gateway"));
+	}
+
+	/**
+	 * Gets an interface IP Address
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @return IP Address, empty if unknown
+	 */
+	public String GetIP(String iface) {
+		Entry e = Get(iface);
+		if (e != null && !e.IPAddress.isEmpty())
+			return Lookup("kernel", e.IPAddress);
+		return Lookup("getprop", Tools.GetProp("dhcp." + iface + ".ipaddress"));
+	}
+
+	/**
+	 * Drops the cached result, the next lookup reads the kernel again
+	 */
+	public void Invalidate() {
+		// A refresh running now may have read the old state, so it is not trusted
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Starts an <b>ip monitor</b> process that invalidates the cache, and the
+	 * addresses and gateways of the shared {@link SnapshotCache}, on every link,
+	 * address or route change
+	 *
+	 * @return True if the monitor is running
+	 */
+	public synchronized boolean StartMonitor() {
+		if (monitor != null)
+			return true;
+		try {
+			final Process p = Runtime.getRuntime().exec(new String[] { "ip", "-o", "monitor", "link", "address", "route" });
+			monitor = p;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+					try {
+						while (reader.readLine() != null) {
+							// Both also invalidate this resolver
+							SnapshotCache.GetDefault().Invalidate(SnapshotCache.Kind.ADDRESSES);
+							SnapshotCache.GetDefault().Invalidate(SnapshotCache.Kind.GATEWAYS);
+							Metrics.GetCounter("mptcp_resolver_events_total", "Change events that invalidated the address resolver").Increment();
+						}
+					} catch (IOException e) {
+						// Monitor stopped
+					} finally {
+						try {
+							reader.close();
+						} catch (IOException e) {
+							// Do Nothing
+						}
+					}
+				}
+			}, "AddressResolver-Monitor");
+			t.setDaemon(true);
+			t.start();
+			return true;
+		} catch (IOException e) {
+			Log.w("AddressResolver", "No ip monitor, relying on the maximum age", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the <b>ip monitor</b> process
+	 */
+	public synchronized void StopMonitor() {
+		if (monitor != null)
+			monitor.destroy();
+		monitor = null;
+	}
+
+	private State Current() {
+		State s = state;
+		if (Valid(s))
+			return s;
+		return Refresh();
+	}
+
+	private boolean Valid(State s) {
+		return s != null && s.generation == generation.get() && System.currentTimeMillis() - s.time < maxAge;
+	}
+
+	private synchronized State Refresh() {
+		State s = state;
+		if (Valid(s))
+			return s;
+		long gen = generation.get();
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("resolver_refresh", null);
+		Map<Integer, Entry> byIndex = new HashMap<Integer, Entry>();
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		boolean failed = false;
+		try {
+			ReadAddresses(byIndex, indexes);
+			boolean missing;
+			try {
+				missing = ReadProcRoutes(byIndex, indexes);
+			} catch (Exception e) {
+				// SELinux denies /proc/net/route to apps since Android 10
+				missing = true;
+			}
+			if (missing)
+				ReadRouteDump(byIndex, indexes);
+		} catch (Exception e) {
+			Log.w("AddressResolver", "Failed to read the interfaces", e);
+			span.Fail(e);
+			failed = true;
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_resolver_refresh_duration_seconds", "Time spent reading addresses and gateways"), start);
+		}
+		s = new State(Collections.unmodifiableMap(byIndex), Collections.unmodifiableMap(indexes), System.currentTimeMillis(), gen);
+		// A failed refresh is answered but not cached, the next lookup tries again
+		if (!failed)
+			state = s;
+		return s;
+	}
+
+	private static void ReadAddresses(Map<Integer, Entry> byIndex, Map<String, Integer> indexes) throws IOException {
+		for (java.net.NetworkInterface ni : Collections.list(java.net.NetworkInterface.getNetworkInterfaces())) {
+			String ip = "", mask = "", broadcast = "";
+			for (InterfaceAddress a : ni.getInterfaceAddresses()) {
+				if (a.getAddress() instanceof Inet4Address) {
+					ip = a.getAddress().getHostAddress();
+					mask = PrefixToMask(a.getNetworkPrefixLength());
+					broadcast = a.getBroadcast() == null ? "" : a.getBroadcast().getHostAddress();
+					break;
+				}
+			}
+			byIndex.put(ni.getIndex(), new Entry(ni.getIndex(), ni.getName(), ip, mask, broadcast, ""));
+			indexes.put(ni.getName(), ni.getIndex());
+		}
+	}
+
+	/**
+	 * Reads the gateways of the main table
+	 *
+	 * @return True if an addressed interface other than lo has no gateway
+	 */
+	private static boolean ReadProcRoutes(Map<Integer, Entry> byIndex, Map<String, Integer> indexes) throws IOException {
+		// Iface Destination Gateway Flags RefCnt Use Metric Mask MTU Window IRTT
+		Map<String, Integer> metrics = new HashMap<String, Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader("/proc/net/route"));
+		try {
+			String line = reader.readLine(); // Header
+			while ((line = reader.readLine()) != null) {
+				String[] f = line.trim().split("\\s+");
+				if (f.length < 8)
+					continue;
+				int flags = Integer.parseInt(f[3], 16);
+				Integer index = indexes.get(f[0]);
+				if (index == null || (flags & (RTF_UP | RTF_GATEWAY)) != (RTF_UP | RTF_GATEWAY))
+					continue;
+				// Default routes win over other gateway routes, then the lowest metric
+				int metric = Integer.parseInt(f[6]) + (f[1].equals("00000000") ? 0 : 1 << 30);
+				Integer best = metrics.get(f[0]);
+				if (best != null && best <= metric)
+					continue;
+				metrics.put(f[0], metric);
+				byIndex.put(index, byIndex.get(index).WithGateway(HexToIP(f[2])));
+			}
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Do Nothing
+			}
+		}
+		for (Entry e : byIndex.values())
+			if (!e.IPAddress.isEmpty() && e.Gateway.isEmpty() && !e.Device.equals("lo"))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Fills missing gateways from the default routes of every table
+	 */
+	private static void ReadRouteDump(Map<Integer, Entry> byIndex, Map<String, Integer> indexes) throws Exception {
+		for (String line : Tools.ExecuteCMD(new String[] { "ip", "-4", "route", "show", "table", "all" }).split("\n")) {
+			String[] t = line.trim().split("\\s+");
+			if (t.length < 5 || !t[0].equals("default"))
+				continue;
+			String via = null, dev = null;
+			for (int i = 1; i + 1 < t.length; i++) {
+				if (t[i].equals("via"))
+					via = t[i + 1];
+				else if (t[i].equals("dev"))
+					dev = t[i + 1];
+			}
+			Integer index = dev == null ? null : indexes.get(dev);
+			if (via == null || index == null || !byIndex.get(index).Gateway.isEmpty())
+				continue;
+			byIndex.put(index, byIndex.get(index).WithGateway(via));
+		}
+	}
+
+	private static String Lookup(String source, String value) {
+		Metrics.GetCounter("mptcp_resolver_lookups_total", "Address and gateway lookups", "source", source).Increment();
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Converts a /proc/net/route address (little endian hex) to dotted notation
+	 */
+	static String HexToIP(String hex) {
+		long v = Long.parseLong(hex, 16);
+		return (v & 0xFF) + "." + ((v >> 8) & 0xFF) + "." + ((v >> 16) & 0xFF) + "." + ((v >> 24) & 0xFF);
+	}
+
+	static String PrefixToMask(int prefix) {
+		long mask = prefix <= 0 ? 0 : (0xFFFFFFFFL << (32 - Math.min(prefix, 32))) & 0xFFFFFFFFL;
+		return ((mask >> 24) & 0xFF) + "." + ((mask >> 16) & 0xFF) + "." + ((mask >> 8) & 0xFF) + "." + (mask & 0xFF);
+	}
+}
@@ -0,0 +1,315 @@
+package com.tvs.mptcpmanager;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.tvs.mptcptypes.TimeSeries;
+
+/**
+ * CPU Frequency and Thermal Sampler
+ *
+ * <BR>
+ * Discovers the present cores and the thermal zones
+ * (<b>/sys/class/thermal/thermal_zone*</b>) once, keeps their sysfs files open
+ * and reads them with preallocated buffers, so it can sample at 10 Hz without
+ * forking processes or creating garbage. Each core frequency (kHz) and each
+ * zone temperature (as reported by the zone, usually millidegrees) is kept in
+ * a {@link TimeSeries}.
+ *
+ */
+public class CpuSampler {
+	private static final String CPU_PATH = "/sys/devices/system/cpu/";
+	private static final String THERMAL_PATH = "/sys/class/thermal/";
+	private static final long REOPEN_MILLIS = 1000;
+
+	private final int[] cores;
+	private final RandomAccessFile[] freqFiles;
+	private final TimeSeries[] freqSeries;
+	private long reopenAt = 0;
+
+	private final String[] zoneNames;
+	private final RandomAccessFile[] zoneFiles;
+	private final TimeSeries[] zoneSeries;
+
+	private final byte[] buffer = new byte[32];
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Discovers cores and thermal zones
+	 *
+	 * @param historySize
+	 *          Samples kept per core and per zone
+	 */
+	public CpuSampler(int historySize) {
+		int[] present;
+		try {
+			present = ParseCpuList(Tools.ReadFile(CPU_PATH + "present"));
+		} catch (Exception e) {
+			present = new int[0];
+		}
+		cores = present;
+		freqFiles = new RandomAccessFile[cores.length];
+		freqSeries = new TimeSeries[cores.length];
+		for (int i = 0; i < cores.length; i++) {
+			freqFiles[i] = OpenFrequency(cores[i]);
+			freqSeries[i] = new TimeSeries(historySize);
+		}
+
+		String[] zones = new File(THERMAL_PATH).list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("thermal_zone");
+			}
+		});
+		if (zones == null)
+			zones = new String[0];
+		Arrays.sort(zones);
+		List<String> names = new ArrayList<String>(zones.length);
+		List<RandomAccessFile> files = new ArrayList<RandomAccessFile>(zones.length);
+		for (String zone : zones) {
+			RandomAccessFile f = Open(THERMAL_PATH + zone + "/temp");
+			if (f == null)
+				continue;
+			String type;
+			try {
+				type = Tools.ReadFile(THERMAL_PATH + zone + "/type").trim();
+			} catch (IOException e) {
+				type = zone;
+			}
+			names.add(type);
+			files.add(f);
+		}
+		zoneNames = names.toArray(new String[names.size()]);
+		zoneFiles = files.toArray(new RandomAccessFile[files.size()]);
+		zoneSeries = new TimeSeries[zoneFiles.length];
+		for (int i = 0; i < zoneSeries.length; i++)
+			zoneSeries[i] = new TimeSeries(historySize);
+	}
+
+	/**
+	 * Parses a Linux CPU list. <BR>
+	 * Example: <B>0,2-7</B> gives <B>[0, 2, 3, 4, 5, 6, 7]</B>
+	 *
+	 * @param list
+	 *          The CPU list
+	 * @return Core IDs
+	 */
+	public static int[] ParseCpuList(String list) {
+		list = list.trim();
+		if (list.isEmpty())
+			return new int[0];
+		List<Integer> ids = new ArrayList<Integer>();
+		for (String range : list.split(",")) {
+			String[] bounds = range.trim().split("-");
+			int first = Integer.parseInt(bounds[0].trim());
+			int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+			for (int i = first; i <= last; i++)
+				ids.add(i);
+		}
+		int[] ret = new int[ids.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = ids.get(i);
+		return ret;
+	}
+
+	/**
+	 * Takes one sample of every core and thermal zone. Cores that are offline
+	 * are recorded as -1, and their files are opened again at most once a
+	 * second so hotplugged cores are picked up.
+	 */
+	public synchronized void Sample() {
+		long now = System.currentTimeMillis();
+		boolean reopen = now >= reopenAt;
+		if (reopen)
+			reopenAt = now + REOPEN_MILLIS;
+		for (int i = 0; i < freqFiles.length; i++) {
+			if (freqFiles[i] == null && reopen)
+				freqFiles[i] = OpenFrequency(cores[i]);
+			long freq = ReadLong(freqFiles[i]);
+			if (freq < 0 && freqFiles[i] != null) {
+				// The core went offline, its cpufreq files are gone
+				Close(freqFiles[i]);
+				freqFiles[i] = null;
+			}
+			freqSeries[i].Add(now, freq);
+		}
+		for (int i = 0; i < zoneFiles.length; i++)
+			zoneSeries[i].Add(now, ReadLong(zoneFiles[i]));
+	}
+
+	/**
+	 * Starts sampling on a background thread
+	 *
+	 * @param hz
+	 *          Samples per second
+	 */
+	public synchronized void Start(int hz) {
+		if (running)
+			return;
+		final long period = 1000 / Math.max(1, hz);
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				while (running) {
+					long next = System.currentTimeMillis() + period;
+					Sample();
+					long wait = next - System.currentTimeMillis();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "CpuSampler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the sampling thread
+	 */
+	public void Stop() {
+		running = false;
+		Thread t = thread;
+		if (t != null)
+			t.interrupt();
+	}
+
+	/**
+	 * Stops sampling and closes all files
+	 */
+	public synchronized void Close() {
+		Stop();
+		for (RandomAccessFile f : freqFiles)
+			Close(f);
+		for (RandomAccessFile f : zoneFiles)
+			Close(f);
+	}
+
+	/**
+	 * @return Present core IDs
+	 */
+	public int[] GetCores() {
+		return cores.clone();
+	}
+
+	/**
+	 * @return Thermal zone types, in the same order as temperature series
+	 */
+	public String[] GetZoneNames() {
+		return zoneNames.clone();
+	}
+
+	/**
+	 * Gets a core frequency series. Callers should synchronize on the sampler
+	 * while reading it.
+	 *
+	 * @param index
+	 *          Index in {@link #GetCores()}
+	 * @return Frequency TimeSeries in kHz
+	 */
+	public TimeSeries GetFrequencySeries(int index) {
+		return freqSeries[index];
+	}
+
+	/**
+	 * Gets a thermal zone temperature series. Callers should synchronize on the
+	 * sampler while reading it.
+	 *
+	 * @param index
+	 *          Index in {@link #GetZoneNames()}
+	 * @return Temperature TimeSeries
+	 */
+	public TimeSeries GetTemperatureSeries(int index) {
+		return zoneSeries[index];
+	}
+
+	/**
+	 * @return Average frequency of the online cores in the last sample, or -1
+	 */
+	public synchronized long GetAverageFrequency() {
+		long sum = 0;
+		int count = 0;
+		for (TimeSeries s : freqSeries) {
+			long f = s.Last();
+			if (f > 0) {
+				sum += f;
+				count++;
+			}
+		}
+		return count == 0 ? -1 : sum / count;
+	}
+
+	/**
+	 * @return Highest temperature of all zones in the last sample, or -1
+	 */
+	public synchronized long GetMaxTemperature() {
+		long max = -1;
+		for (TimeSeries s : zoneSeries)
+			max = Math.max(max, s.Last());
+		return max;
+	}
+
+	private static RandomAccessFile OpenFrequency(int core) {
+		String base = CPU_PATH + "cpu" + core + "/cpufreq/";
+		// cpuinfo_cur_freq is root only on most kernels, scaling_cur_freq is not
+		RandomAccessFile f = Open(base + "cpuinfo_cur_freq");
+		return f != null ? f : Open(base + "scaling_cur_freq");
+	}
+
+	/**
+	 * Reads a sysfs file holding a single decimal number
+	 *
+	 * @param f
+	 *          Open file
+	 * @return The number or -1 if not available
+	 */
+	private long ReadLong(RandomAccessFile f) {
+		if (f == null)
+			return -1;
+		try {
+			f.seek(0);
+			int n = f.read(buffer, 0, buffer.length);
+			long value = 0;
+			boolean negative = false, digits = false;
+			for (int i = 0; i < n; i++) {
+				byte b = buffer[i];
+				if (b == '-' && !digits)
+					negative = true;
+				else if (b >= '0' && b <= '9') {
+					value = value * 10 + (b - '0');
+					digits = true;
+				} else if (digits)
+					break;
+			}
+			return !digits ? -1 : negative ? -value : value;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static RandomAccessFile Open(String path) {
+		try {
+			return new RandomAccessFile(path, "r");
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void Close(RandomAccessFile f) {
+		try {
+			if (f != null)
+				f.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.tvs.mptcpmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.PathProfile;
+
+/**
+ * Binary protocol between {@link ManagerDaemon} and {@link ManagerClient}
+ *
+ * <BR>
+ * Every message is a frame: <i> <BR>
+ * int length (big endian, opcode + payload) <BR>
+ * byte opcode <BR>
+ * byte[length - 1] payload </i> <BR>
+ * Strings inside payloads are written with DataOutputStream.writeUTF.
+ *
+ * <BR>
+ * Requests: QUERY_INTERFACES, APPLY_PROFILE (profile payload), SUBSCRIBE and
+ * METRICS. Responses: OK, ERROR (message), INTERFACES (snapshots) and TEXT.
+ * After SUBSCRIBE is answered with OK the daemon pushes EVENT frames on that
+ * connection until it is closed.
+ *
+ */
+public class DaemonProtocol {
+	public static final String SOCKET_NAME = "mptcpmanager";
+	public static final int MAX_FRAME = 4 * 1024 * 1024;
+
+	// Requests
+	public static final byte OP_QUERY_INTERFACES = 1;
+	public static final byte OP_APPLY_PROFILE = 2;
+	public static final byte OP_SUBSCRIBE = 3;
+	public static final byte OP_METRICS = 4;
+
+	// Responses
+	public static final byte OP_OK = 64;
+	public static final byte OP_ERROR = 65;
+	public static final byte OP_INTERFACES = 66;
+	public static final byte OP_EVENT = 67;
+	public static final byte OP_TEXT = 68;
+
+	// Event Types
+	public static final byte EVENT_ADDED = 1;
+	public static final byte EVENT_REMOVED = 2;
+	public static final byte EVENT_ADDRESS_CHANGED = 3;
+
+	/**
+	 * A decoded frame
+	 */
+	public static class Frame {
+		public final byte Op;
+		public final byte[] Payload;
+
+		public Frame(byte op, byte[] payload) {
+			Op = op;
+			Payload = payload;
+		}
+	}
+
+	/**
+	 * A decoded interface event
+	 */
+	public static class Event {
+		public final byte Type;
+		public final InterfaceSnapshot Interface;
+
+		public Event(byte type, InterfaceSnapshot iface) {
+			Type = type;
+			Interface = iface;
+		}
+	}
+
+	/**
+	 * Writes a frame
+	 *
+	 * @param out
+	 *          Output Stream
+	 * @param op
+	 *          Opcode
+	 * @param payload
+	 *          Payload, may be empty
+	 * @throws IOException
+	 */
+	public static void WriteFrame(DataOutputStream out, byte op, byte[] payload) throws IOException {
+		out.writeInt(payload.length + 1);
+		out.writeByte(op);
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * Reads a frame
+	 *
+	 * @param in
+	 *          Input Stream
+	 * @return The Frame
+	 * @throws IOException
+	 *           EOFException when the peer closed the connection
+	 */
+	public static Frame ReadFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME)
+			throw new IOException("Bad frame length " + length);
+		byte op = in.readByte();
+		byte[] payload = new byte[length - 1];
+		in.readFully(payload);
+		return new Frame(op, payload);
+	}
+
+	/**
+	 * Encodes interface snapshots
+	 *
+	 * @param ifaces
+	 *          Snapshots
+	 * @return Payload
+	 */
+	public static byte[] EncodeInterfaces(InterfaceSnapshot[] ifaces) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + ifaces.length * 160);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(ifaces.length);
+			for (InterfaceSnapshot iface : ifaces)
+				WriteInterface(out, iface);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes interface snapshots
+	 *
+	 * @param payload
+	 *          Payload
+	 * @return Snapshots
+	 * @throws IOException
+	 */
+	public static InterfaceSnapshot[] DecodeInterfaces(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		InterfaceSnapshot[] ifaces = new InterfaceSnapshot[in.readInt()];
+		for (int i = 0; i < ifaces.length; i++)
+			ifaces[i] = ReadInterface(in);
+		return ifaces;
+	}
+
+	/**
+	 * Encodes an interface event
+	 *
+	 * @param type
+	 *          Event Type
+	 * @param iface
+	 *          Interface Snapshot
+	 * @return Payload
+	 */
+	public static byte[] EncodeEvent(byte type, InterfaceSnapshot iface) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(192);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			WriteInterface(out, iface);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes an interface event
+	 *
+	 * @param payload
+	 *          Payload
+	 * @return Event
+	 * @throws IOException
+	 */
+	public static Event DecodeEvent(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		return new Event(type, ReadInterface(in));
+	}
+
+	/**
+	 * Encodes a path profile
+	 *
+	 * @param profile
+	 *          PathProfile
+	 * @return Payload
+	 */
+	public static byte[] EncodeProfile(PathProfile profile) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(profile.Name);
+			out.writeInt(profile.GetEntries().size());
+			for (PathProfile.Entry entry : profile.GetEntries()) {
+				out.writeUTF(entry.Device);
+				out.writeUTF(entry.Table);
+				out.writeUTF(entry.Gateway);
+				out.writeByte(entry.PathMode.ordinal());
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes a path profile
+	 *
+	 * @param payload
+	 *          Payload
+	 * @return PathProfile
+	 * @throws IOException
+	 */
+	public static PathProfile DecodeProfile(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		PathProfile profile = new PathProfile(in.readUTF());
+		int count = in.readInt();
+		PathProfile.Mode[] modes = PathProfile.Mode.values();
+		for (int i = 0; i < count; i++) {
+			String device = in.readUTF(), table = in.readUTF(), gateway = in.readUTF();
+			int mode = in.readByte();
+			if (mode < 0 || mode >= modes.length)
+				throw new IOException("Bad path mode " + mode);
+			profile.Add(device, table, gateway, modes[mode]);
+		}
+		return profile;
+	}
+
+	/**
+	 * Encodes a string payload (ERROR and TEXT frames)
+	 *
+	 * @param text
+	 *          The Text
+	 * @return Payload
+	 */
+	public static byte[] EncodeText(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes a string payload (ERROR and TEXT frames)
+	 *
+	 * @param payload
+	 *          Payload
+	 * @return The Text
+	 */
+	public static String DecodeText(byte[] payload) {
+		try {
+			return new String(payload, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void WriteInterface(DataOutputStream out, InterfaceSnapshot iface) throws IOException {
+		out.writeUTF(iface.Device);
+		out.writeUTF(iface.Address);
+		out.writeUTF(iface.IPAddress);
+		out.writeUTF(iface.NetworkMask);
+		out.writeUTF(iface.Broadcast);
+		out.writeUTF(iface.Gateway);
+		out.writeLong(iface.RXBytes);
+		out.writeLong(iface.RXPackets);
+		out.writeLong(iface.RXErrors);
+		out.writeLong(iface.RXDrops);
+		out.writeLong(iface.TXBytes);
+		out.writeLong(iface.TXPackets);
+		out.writeLong(iface.TXErrors);
+		out.writeLong(iface.TXDrops);
+		out.writeLong(iface.RXRate);
+		out.writeLong(iface.TXRate);
+		out.writeLong(iface.Time);
+	}
+
+	private static InterfaceSnapshot ReadInterface(DataInputStream in) throws IOException {
+		return new InterfaceSnapshot(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong(),
+		    in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+	}
+}
@@ -0,0 +1,529 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+import com.tvs.mptcptypes.MPTCPCapabilities;
+
+/**
+ * Upstream MPTCP path manager endpoints and limits.
+ *
+ * <BR>
+ * Upstream kernels (5.6+) are configured through the <b>mptcp_pm</b> generic
+ * netlink family instead of sysctls. Every managed interface gets one
+ * endpoint for its address, with its {@link Flag}s, and the endpoints follow
+ * the addresses: an <b>ip -o monitor address</b> process triggers
+ * {@link #Sync()} as soon as an address changes. Path manager events
+ * (connections and subflows created, established or closed) from <b>ip mptcp
+ * monitor</b> are counted in {@link Metrics} and passed to
+ * {@link Listener}s.
+ *
+ * <BR>
+ * Commands go through {@link RouteManager#CallIP(String)}: <i> <BR>
+ * ip mptcp endpoint add|del|change ... <BR>
+ * ip mptcp limits set subflow N add_addr_accepted M </i> <BR>
+ * Does nothing on kernels without upstream MPTCP, see {@link #IsSupported()}.
+ *
+ */
+public class EndpointManager {
+	public enum Flag {
+		SIGNAL, // Announce the address to the peer
+		SUBFLOW, // Open subflows from the address
+		BACKUP, // Only use the subflows when no other path works
+		FULLMESH // Open a subflow to every announced peer address
+	}
+
+	/**
+	 * A path manager event, example: <i> <BR>
+	 * [ SF_ESTABLISHED] token=5a1e... remid=0 locid=1 saddr4=10.0.0.5
+	 * daddr4=1.2.3.4 sport=40000 dport=443 backup=0 </i>
+	 */
+	public static class Event {
+		public final String Type; // CREATED, ESTABLISHED, CLOSED, SF_ESTABLISHED, SF_CLOSED...
+		public final Map<String, String> Fields; // token, saddr4, daddr4, sport, dport...
+
+		Event(String type, Map<String, String> fields) {
+			Type = type;
+			Fields = Collections.unmodifiableMap(fields);
+		}
+
+		public String toString() {
+			return Type + " " + Fields;
+		}
+	}
+
+	/**
+	 * Receives path manager events, on the monitor thread
+	 */
+	public interface Listener {
+		void OnEvent(Event event);
+	}
+
+	/**
+	 * An endpoint installed in the kernel
+	 */
+	private static class Endpoint {
+		final int id;
+		final String address, device;
+		EnumSet<Flag> flags;
+
+		Endpoint(int id, String address, String device, EnumSet<Flag> flags) {
+			this.id = id;
+			this.address = address;
+			this.device = device;
+			this.flags = flags;
+		}
+	}
+
+	private static final int MAX_ID = 255;
+
+	private final Map<String, EnumSet<Flag>> managed = new LinkedHashMap<String, EnumSet<Flag>>();
+	private final Map<Integer, Endpoint> endpoints = new HashMap<Integer, Endpoint>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private Monitor addressMonitor, eventMonitor;
+	private boolean loaded = false;
+
+	/**
+	 * @return True if the kernel has upstream MPTCP
+	 */
+	public static boolean IsSupported() {
+		return MPTCPProbe.GetCapabilities().KernelFlavor == MPTCPCapabilities.Flavor.UPSTREAM;
+	}
+
+	/**
+	 * Manages the endpoint of an interface, or changes its flags
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param flags
+	 *          Endpoint Flags
+	 * @throws IllegalArgumentException
+	 *           If flags has both SIGNAL and FULLMESH, which the kernel refuses
+	 */
+	public void Manage(String device, EnumSet<Flag> flags) {
+		if (flags.contains(Flag.SIGNAL) && flags.contains(Flag.FULLMESH))
+			throw new IllegalArgumentException("SIGNAL and FULLMESH can not be combined");
+		synchronized (this) {
+			managed.put(device, EnumSet.copyOf(flags));
+		}
+		Sync();
+	}
+
+	/**
+	 * Sets or clears the backup flag of a managed interface endpoint
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param backup
+	 *          Only use the interface when no other path works
+	 * @return False if the interface is not managed or its endpoint could not
+	 *         be changed
+	 */
+	public boolean SetBackup(String device, boolean backup) {
+		synchronized (this) {
+			EnumSet<Flag> flags = managed.get(device);
+			if (flags == null)
+				return false;
+			if (backup)
+				flags.add(Flag.BACKUP);
+			else
+				flags.remove(Flag.BACKUP);
+		}
+		return Sync();
+	}
+
+	/**
+	 * Stops managing an interface and removes its endpoint
+	 *
+	 * @param device
+	 *          Network Interface
+	 */
+	public synchronized void Unmanage(String device) {
+		managed.remove(device);
+		for (Iterator<Endpoint> it = endpoints.values().iterator(); it.hasNext();) {
+			Endpoint e = it.next();
+			if (e.device.equals(device) && Run("endpoint_del", "mptcp endpoint del id " + e.id))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Sets the path manager limits
+	 *
+	 * @param subflows
+	 *          Maximum extra subflows per connection
+	 * @param addAddrAccepted
+	 *          Maximum addresses announced by the peer that are used
+	 * @return True if set
+	 */
+	public boolean SetLimits(int subflows, int addAddrAccepted) {
+		return IsSupported() && Run("limits_set", "mptcp limits set subflow " + subflows + " add_addr_accepted " + addAddrAccepted);
+	}
+
+	/**
+	 * Adds a listener of path manager events
+	 *
+	 * @param listener
+	 *          The Listener
+	 */
+	public void AddListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Removes a listener of path manager events
+	 *
+	 * @param listener
+	 *          The Listener
+	 */
+	public void RemoveListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Syncs the managed interfaces and starts following address changes and
+	 * path manager events
+	 */
+	public synchronized void Start() {
+		if (!IsSupported()) {
+			Log.w("EndpointManager", "No upstream MPTCP, endpoints are not managed");
+			return;
+		}
+		if (addressMonitor != null)
+			return;
+		addressMonitor = new Monitor(new String[] { "ip", "-o", "monitor", "address" }, "EndpointManager-Address", new Listener() {
+			public void OnEvent(Event event) {
+				AddressResolver.GetDefault().Invalidate();
+				Sync();
+			}
+		}, true);
+		// Path manager events go to a multicast group that needs CAP_NET_ADMIN
+		eventMonitor = new Monitor(new String[] { "su", "-c", "ip mptcp monitor" }, "EndpointManager-Events", new Listener() {
+			public void OnEvent(Event event) {
+				Metrics.GetCounter("mptcp_pm_events_total", "MPTCP path manager events", "type", event.Type.toLowerCase()).Increment();
+				for (Listener l : listeners)
+					l.OnEvent(event);
+			}
+		}, false);
+		Sync();
+	}
+
+	/**
+	 * Stops following changes. Endpoints stay in the kernel.
+	 */
+	public synchronized void Stop() {
+		if (addressMonitor != null)
+			addressMonitor.Stop();
+		if (eventMonitor != null)
+			eventMonitor.Stop();
+		addressMonitor = eventMonitor = null;
+	}
+
+	/**
+	 * Makes the endpoints match the current address and flags of every managed
+	 * interface. The first call adopts the endpoints already in the kernel.
+	 *
+	 * @return True if every managed interface got its endpoint
+	 */
+	public synchronized boolean Sync() {
+		if (!IsSupported())
+			return false;
+		if (!loaded) {
+			Load();
+			loaded = true;
+		}
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("endpoint_sync", null);
+		boolean ok = true;
+		try {
+			for (Map.Entry<String, EnumSet<Flag>> m : managed.entrySet()) {
+				String device = m.getKey();
+				AddressResolver.Entry entry = AddressResolver.GetDefault().Get(device);
+				String address = entry == null ? "" : entry.IPAddress;
+				Endpoint current = null;
+				for (Endpoint e : endpoints.values())
+					if (e.device.equals(device))
+						current = e;
+				if (current == null && !address.isEmpty()) {
+					// Adopted endpoints may have been added without a device
+					for (Endpoint e : endpoints.values())
+						if (e.address.equals(address))
+							current = e;
+					if (current != null) {
+						current = new Endpoint(current.id, address, device, current.flags);
+						endpoints.put(current.id, current);
+					}
+				}
+
+				if (current != null && !current.address.equals(address)) {
+					if (!Run("endpoint_del", "mptcp endpoint del id " + current.id)) {
+						// Keep it and try again on the next sync
+						ok = false;
+						continue;
+					}
+					endpoints.remove(current.id);
+					current = null;
+				}
+				if (address.isEmpty())
+					continue;
+				if (current == null) {
+					int id = FreeId();
+					if (id > 0 && Run("endpoint_add", "mptcp endpoint add " + address + " id " + id + " dev " + device + FlagArgs(m.getValue())))
+						endpoints.put(id, new Endpoint(id, address, device, EnumSet.copyOf(m.getValue())));
+					else
+						ok = false;
+				} else if (!current.flags.equals(m.getValue())) {
+					// change only switches backup, other flags need a new endpoint
+					EnumSet<Flag> toggled = EnumSet.copyOf(current.flags);
+					toggled.add(Flag.BACKUP);
+					EnumSet<Flag> wanted = EnumSet.copyOf(m.getValue());
+					wanted.add(Flag.BACKUP);
+					if (toggled.equals(wanted)) {
+						boolean backup = m.getValue().contains(Flag.BACKUP);
+						if (Run("endpoint_change", "mptcp endpoint change id " + current.id + (backup ? " backup" : " nobackup")))
+							current.flags = EnumSet.copyOf(m.getValue());
+						else
+							ok = false;
+					} else if (Run("endpoint_del", "mptcp endpoint del id " + current.id)) {
+						endpoints.remove(current.id);
+						if (Run("endpoint_add", "mptcp endpoint add " + address + " id " + current.id + " dev " + device + FlagArgs(m.getValue())))
+							endpoints.put(current.id, new Endpoint(current.id, address, device, EnumSet.copyOf(m.getValue())));
+						else
+							ok = false;
+					} else {
+						ok = false;
+					}
+				}
+			}
+			return ok;
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_endpoint_sync_duration_seconds", "Time spent syncing MPTCP endpoints"), start);
+			Metrics.GetGauge("mptcp_endpoints", "MPTCP endpoints installed by the manager").Set(endpoints.size());
+		}
+	}
+
+	/**
+	 * Reads the endpoints in the kernel, example: <i> <BR>
+	 * 10.0.0.5 id 1 subflow backup dev wlan0 </i>
+	 */
+	private void Load() {
+		try {
+			for (String line : RouteManager.CallIP("mptcp endpoint show").split("\n")) {
+				String[] t = line.trim().split("\\s+");
+				if (t.length < 3 || !t[1].equals("id"))
+					continue;
+				String device = "";
+				EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+				for (int i = 3; i < t.length; i++) {
+					if (t[i].equals("dev") && i + 1 < t.length)
+						device = t[++i];
+					else
+						for (Flag f : Flag.values())
+							if (f.name().equalsIgnoreCase(t[i]))
+								flags.add(f);
+				}
+				int id = Integer.parseInt(t[2]);
+				endpoints.put(id, new Endpoint(id, t[0], device, flags));
+			}
+		} catch (Exception e) {
+			Log.w("EndpointManager", "Could not read the kernel endpoints", e);
+		}
+	}
+
+	private int FreeId() {
+		for (int id = 1; id <= MAX_ID; id++)
+			if (!endpoints.containsKey(id))
+				return id;
+		return -1;
+	}
+
+	private static String FlagArgs(EnumSet<Flag> flags) {
+		StringBuilder sb = new StringBuilder();
+		for (Flag f : flags)
+			sb.append(' ').append(f.name().toLowerCase());
+		return sb.toString();
+	}
+
+	/**
+	 * Runs an ip command, recording its duration and failures
+	 *
+	 * @return True if ip exited with a zero status
+	 */
+	private static boolean Run(String op, String args) {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin(op, args);
+		try {
+			RouteManager.CallIP(args);
+			return true;
+		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_endpoint_errors_total", "MPTCP endpoint operations that failed", "op", op).Increment();
+			Log.e("EndpointManager::" + op, "ip command failed", e);
+			span.Fail(e);
+			return false;
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_endpoint_duration_seconds", "Time spent on MPTCP endpoint operations", "op", op), start);
+		}
+	}
+
+	/**
+	 * Runs a monitor process that calls the handler for every line, and starts
+	 * it again, after a growing delay, whenever it ends before {@link #Stop()}.
+	 * Its stderr is logged.
+	 */
+	private class Monitor extends Thread {
+		private static final long MIN_DELAY = 1000, MAX_DELAY = 60000;
+
+		private final String[] cmd;
+		private final Listener handler;
+		private final boolean resync;
+		private volatile boolean stopped = false;
+		private volatile Process process;
+
+		/**
+		 * @param resync
+		 *          Sync the endpoints after a restart, for the changes missed
+		 *          while the monitor was down
+		 */
+		Monitor(String[] cmd, String name, Listener handler, boolean resync) {
+			super(name);
+			this.cmd = cmd;
+			this.handler = handler;
+			this.resync = resync;
+			setDaemon(true);
+			start();
+		}
+
+		public void run() {
+			long delay = MIN_DELAY;
+			boolean restarted = false;
+			while (!stopped) {
+				try {
+					Process p = Runtime.getRuntime().exec(cmd);
+					process = p;
+					if (stopped) {
+						p.destroy();
+						break;
+					}
+					Drain(p);
+					if (restarted && resync) {
+						AddressResolver.GetDefault().Invalidate();
+						Sync();
+					}
+					if (Read(p))
+						delay = MIN_DELAY;
+					p.destroy();
+				} catch (IOException e) {
+					Log.w("EndpointManager", "Could not start " + getName(), e);
+				}
+				if (stopped)
+					break;
+				Metrics.GetCounter("mptcp_endpoint_monitor_restarts_total", "MPTCP endpoint monitors started again after they ended", "monitor", getName())
+				    .Increment();
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					break;
+				}
+				delay = Math.min(delay * 2, MAX_DELAY);
+				restarted = true;
+			}
+		}
+
+		/**
+		 * Reads the process lines until it ends
+		 *
+		 * @return True if any line was read
+		 */
+		private boolean Read(Process p) {
+			boolean any = false;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					any = true;
+					Event event = ParseEvent(line);
+					if (event != null)
+						handler.OnEvent(event);
+				}
+			} catch (IOException e) {
+				// Monitor stopped
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Do Nothing
+				}
+			}
+			return any;
+		}
+
+		private void Drain(Process p) {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						String line;
+						while ((line = reader.readLine()) != null)
+							Log.w("EndpointManager", getName() + ": " + line);
+					} catch (IOException e) {
+						// Monitor stopped
+					} finally {
+						try {
+							reader.close();
+						} catch (IOException e) {
+							// Do Nothing
+						}
+					}
+				}
+			}, getName() + "-Stderr");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void Stop() {
+			stopped = true;
+			Process p = process;
+			if (p != null)
+				p.destroy();
+			interrupt();
+		}
+	}
+
+	/**
+	 * Parses a monitor line: <i>[TYPE] key=value ...</i>. Lines without a
+	 * bracketed type, as from ip monitor address, become ADDRESS events.
+	 */
+	static Event ParseEvent(String line) {
+		line = line.trim();
+		if (line.isEmpty())
+			return null;
+		String type = "ADDRESS";
+		String rest = line;
+		if (line.startsWith("[")) {
+			int close = line.indexOf(']');
+			if (close < 0)
+				return null;
+			type = line.substring(1, close).trim();
+			rest = line.substring(close + 1);
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (String token : rest.trim().split("\\s+")) {
+			int eq = token.indexOf('=');
+			if (eq > 0)
+				fields.put(token.substring(0, eq), token.substring(eq + 1).replaceAll(",$", ""));
+		}
+		return new Event(type, fields);
+	}
+}
@@ -0,0 +1,319 @@
+package com.tvs.mptcpmanager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Energy aware path scheduling.
+ *
+ * <BR>
+ * Keeps the modem path out of the MPTCP path set while the aggregate demand
+ * fits in the cheaper paths (ethernet and wireless), and brings it back when
+ * the demand stays above a threshold for a while. A hot or throttled CPU makes
+ * demotion easier and blocks promotion until it cools down.
+ *
+ * <BR>
+ * The modem can be demoted in two ways: <i> <BR>
+ * BACKUP - ip link set dev $MODEM multipath backup, or on upstream kernels the
+ * backup flag of its endpoint (see {@link #SetEndpoints(EndpointManager)})
+ * <BR>
+ * REMOVE - ip rule del from $MODEMIP table $TABLE and the default hop removed
+ * </i> <BR>
+ * Upstream kernels without an {@link EndpointManager} demote with REMOVE. The
+ * state only changes when the commands succeed, otherwise they are retried on
+ * the next evaluation. REMOVE promotes with the current modem address and
+ * gateway, and waits while the modem has none.
+ *
+ * <BR>
+ * The modem is only demoted while another interface has an address and a
+ * gateway, and is promoted at once when none has.
+ *
+ * <BR>
+ * Call {@link #Evaluate(NetworkInterface[])} periodically with freshly updated
+ * interfaces. Effects are reported in {@link Metrics} as
+ * <b>mptcp_energy_*</b>.
+ *
+ */
+public class EnergyPolicy {
+	public enum DemoteMode {
+		BACKUP, REMOVE
+	}
+
+	public enum ModemState {
+		ACTIVE, DEMOTED
+	}
+
+	/**
+	 * Bytes counters of an interface at a given time
+	 */
+	private static class Sample {
+		final long time, bytes;
+
+		Sample(long time, long bytes) {
+			this.time = time;
+			this.bytes = bytes;
+		}
+	}
+
+	private final String modemDevice, modemTable;
+	private final DemoteMode mode;
+
+	// Thresholds, rates in bytes per second
+	private long demoteBelowRate = 256 * 1024;
+	private long promoteAboveRate = 1024 * 1024;
+	private long promoteAfterMillis = 5000;
+	private long demoteAfterMillis = 30000;
+	private long hotTemperature = Long.MAX_VALUE;
+	private double throttledFraction = 0.6;
+
+	private final Map<String, Sample> samples = new HashMap<String, Sample>();
+	private ModemState state = ModemState.ACTIVE;
+	private long aboveSince = -1, belowSince = -1, lastEvaluation = -1;
+	private boolean demotedBackup;
+	private EndpointManager endpoints = null;
+
+	/**
+	 * Creates a policy for a modem path
+	 *
+	 * @param modemDevice
+	 *          Modem Network Interface
+	 * @param modemTable
+	 *          Modem Routing Table
+	 * @param mode
+	 *          How the modem is demoted
+	 */
+	public EnergyPolicy(String modemDevice, String modemTable, DemoteMode mode) {
+		this.modemDevice = modemDevice;
+		this.modemTable = modemTable;
+		this.mode = mode;
+	}
+
+	/**
+	 * Sets the demand thresholds
+	 *
+	 * @param demoteBelowRate
+	 *          Aggregate bytes per second under which the modem is demoted
+	 * @param demoteAfterMillis
+	 *          How long the demand must stay under demoteBelowRate
+	 * @param promoteAboveRate
+	 *          Aggregate bytes per second over which the modem is promoted
+	 * @param promoteAfterMillis
+	 *          How long the demand must stay over promoteAboveRate
+	 */
+	public synchronized void SetThresholds(long demoteBelowRate, long demoteAfterMillis, long promoteAboveRate, long promoteAfterMillis) {
+		this.demoteBelowRate = demoteBelowRate;
+		this.demoteAfterMillis = demoteAfterMillis;
+		this.promoteAboveRate = promoteAboveRate;
+		this.promoteAfterMillis = promoteAfterMillis;
+	}
+
+	/**
+	 * Sets the thermal thresholds
+	 *
+	 * @param hotTemperature
+	 *          Temperature, in the units of the temperature source, over which
+	 *          the CPU is considered hot
+	 * @param throttledFraction
+	 *          The CPU is considered throttled when its frequency cap
+	 *          (scaling_max_freq) is under this fraction of the hardware
+	 *          maximum (cpuinfo_max_freq)
+	 */
+	public synchronized void SetThermal(long hotTemperature, double throttledFraction) {
+		this.hotTemperature = hotTemperature;
+		this.throttledFraction = throttledFraction;
+	}
+
+	/**
+	 * Sets the endpoints used to demote the modem with BACKUP on upstream MPTCP
+	 * kernels. The modem must be managed by it.
+	 *
+	 * @param endpoints
+	 *          EndpointManager or null
+	 */
+	public synchronized void SetEndpoints(EndpointManager endpoints) {
+		this.endpoints = endpoints;
+	}
+
+	/**
+	 * @return Current modem state
+	 */
+	public synchronized ModemState GetState() {
+		return state;
+	}
+
+	/**
+	 * Evaluates the policy using {@link Tools#GetTemperature()},
+	 * {@link Tools#GetFrequencyCap()} and the current time.
+	 *
+	 * @param ifaces
+	 *          Updated NetworkInterface Array
+	 * @return Modem State after evaluation
+	 */
+	public ModemState Evaluate(NetworkInterface[] ifaces) {
+		return Evaluate(ifaces, Tools.GetTemperature(), Tools.GetFrequencyCap(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Evaluates the policy and demotes or promotes the modem if needed.
+	 *
+	 * @param ifaces
+	 *          Updated NetworkInterface Array
+	 * @param temperature
+	 *          CPU temperature or -1 if not available
+	 * @param frequencyCap
+	 *          Average CPU frequency cap, in percent of the hardware maximum, or
+	 *          -1 if not available
+	 * @param now
+	 *          Current time in milliseconds
+	 * @return Modem State after evaluation
+	 */
+	public synchronized ModemState Evaluate(NetworkInterface[] ifaces, long temperature, long frequencyCap, long now) {
+		long demand = 0, modemRate = 0;
+		NetworkInterface modem = null;
+		boolean alternative = false;
+		for (NetworkInterface iface : ifaces) {
+			if (iface.Device.equals("lo"))
+				continue;
+			long rate = Rate(iface, now);
+			demand += rate;
+			if (iface.Device.equals(modemDevice)) {
+				modem = iface;
+				modemRate = rate;
+			} else if (!alternative && HasPath(iface)) {
+				alternative = true;
+			}
+		}
+		boolean hot = (temperature >= 0 && temperature >= hotTemperature) || (frequencyCap >= 0 && frequencyCap < throttledFraction * 100);
+
+		Metrics.GetGauge("mptcp_energy_demand_bytes_per_second", "Aggregate demand of all paths").Set(demand);
+		if (lastEvaluation >= 0 && now > lastEvaluation) {
+			long elapsed = now - lastEvaluation;
+			if (state == ModemState.DEMOTED)
+				Metrics.GetCounter("mptcp_energy_demoted_milliseconds_total", "Time the modem spent demoted").Add(elapsed);
+			Metrics.GetCounter("mptcp_energy_modem_bytes_total", "Bytes moved by the modem per state", "state", state.name().toLowerCase())
+			    .Add(modemRate * elapsed / 1000);
+		}
+		lastEvaluation = now;
+
+		if (demand >= promoteAboveRate) {
+			if (aboveSince < 0)
+				aboveSince = now;
+		} else {
+			aboveSince = -1;
+		}
+		if (demand < demoteBelowRate) {
+			if (belowSince < 0)
+				belowSince = now;
+		} else {
+			belowSince = -1;
+		}
+
+		// A hot CPU demotes as soon as the demand fits, without waiting
+		if (state == ModemState.ACTIVE && modem != null && alternative && belowSince >= 0 && (hot || now - belowSince >= demoteAfterMillis)) {
+			Demote(modem);
+		} else if (state == ModemState.DEMOTED && !alternative) {
+			// The modem is the only path left, no demand would reach it
+			Promote(modem);
+		} else if (state == ModemState.DEMOTED && !hot && aboveSince >= 0 && now - aboveSince >= promoteAfterMillis) {
+			Promote(modem);
+		}
+		return state;
+	}
+
+	private void Demote(NetworkInterface modem) {
+		Tracer.Span span = Tracer.Begin("energy_demote", modemDevice + " " + mode);
+		try {
+			boolean upstream = EndpointManager.IsSupported();
+			boolean backup = mode == DemoteMode.BACKUP && (!upstream || endpoints != null);
+			boolean done;
+			if (backup) {
+				if (upstream)
+					done = endpoints.SetBackup(modemDevice, true);
+				else
+					done = RouteManager.SetMultipath(modemDevice, "backup");
+			} else {
+				String gateway = RouteManager.GetIFaceGateway(modemDevice);
+				done = RouteManager.DelRule(modemTable, modem.IPAddress);
+				if (done && gateway != null && !gateway.isEmpty() && !RouteManager.RemoveGateway(gateway, modemDevice)) {
+					// Put the rule back so the next attempt starts over
+					RouteManager.AddRule(modemTable, modem.IPAddress);
+					done = false;
+				}
+			}
+			if (!done) {
+				span.Fail(new Exception("Could not demote " + modemDevice));
+				return;
+			}
+			demotedBackup = backup;
+			state = ModemState.DEMOTED;
+			Metrics.GetCounter("mptcp_energy_demotions_total", "Times the modem was demoted").Increment();
+			Metrics.GetGauge("mptcp_energy_modem_demoted", "1 if the modem is demoted").Set(1);
+		} finally {
+			span.End();
+		}
+	}
+
+	private void Promote(NetworkInterface modem) {
+		Tracer.Span span = Tracer.Begin("energy_promote", modemDevice + " " + mode);
+		try {
+			boolean done;
+			if (demotedBackup) {
+				if (EndpointManager.IsSupported())
+					done = endpoints.SetBackup(modemDevice, false);
+				else
+					done = RouteManager.SetMultipath(modemDevice, "on");
+			} else {
+				// The modem may have a new address since it was demoted
+				if (modem == null || !HasPath(modem))
+					return;
+				String gateway = RouteManager.GetIFaceGateway(modemDevice);
+				done = RouteManager.AddRule(modemTable, modem.IPAddress);
+				if (done && !RouteManager.AddDefaultHop(gateway, modemDevice)) {
+					RouteManager.DelRule(modemTable, modem.IPAddress);
+					done = false;
+				}
+			}
+			if (!done) {
+				span.Fail(new Exception("Could not promote " + modemDevice));
+				return;
+			}
+			state = ModemState.ACTIVE;
+			Metrics.GetCounter("mptcp_energy_promotions_total", "Times the modem was promoted").Increment();
+			Metrics.GetGauge("mptcp_energy_modem_demoted", "1 if the modem is demoted").Set(0);
+		} finally {
+			span.End();
+		}
+	}
+
+	/**
+	 * @return True if the interface has an address and a gateway
+	 */
+	private static boolean HasPath(NetworkInterface iface) {
+		if (iface.IPAddress == null || iface.IPAddress.isEmpty() || iface.IPAddress.equals("0.0.0.0"))
+			return false;
+		String gateway = RouteManager.GetIFaceGateway(iface.Device);
+		return gateway != null && !gateway.isEmpty();
+	}
+
+	/**
+	 * Computes an interface rate (RX + TX bytes per second) since last call
+	 *
+	 * @param iface
+	 *          The NetworkInterface
+	 * @param now
+	 *          Current time in milliseconds
+	 * @return Rate or 0 on the first call
+	 */
+	private long Rate(NetworkInterface iface, long now) {
+		long bytes = (iface.RXBytes & 0xFFFFFFFFL) + (iface.TXBytes & 0xFFFFFFFFL);
+		Sample last = samples.put(iface.Device, new Sample(now, bytes));
+		if (last == null || now <= last.time)
+			return 0;
+		long delta = bytes - last.bytes;
+		if (delta < 0) // 32 bit counter wrapped
+			delta += 0x100000000L;
+		return delta * 1000 / (now - last.time);
+	}
+}
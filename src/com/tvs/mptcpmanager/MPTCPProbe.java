@@ -0,0 +1,190 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.tvs.mptcptypes.MPTCPCapabilities;
+import com.tvs.mptcptypes.MPTCPCapabilities.Flavor;
+
+/**
+ * Kernel MPTCP Capability Probe
+ *
+ * <BR>
+ * Detects once, on first use, which MPTCP implementation the kernel has and
+ * what it offers, reading <b>/proc/sys</b> and <b>/sys/module</b> directly: <i>
+ * <BR>
+ * Out-of-tree (multipath-tcp.org): net.mptcp.mptcp_enabled <BR>
+ * Upstream (Linux 5.6+): net.mptcp.enabled </i> <BR>
+ * The result is cached in an immutable {@link MPTCPCapabilities}.
+ *
+ */
+public class MPTCPProbe {
+	private static final String MPTCP_PROC = "/proc/sys/net/mptcp/";
+
+	// Out-of-tree schedulers and path managers are built as modules
+	private static final String[] OOT_SCHEDULER_MODULES = { "mptcp_rr", "mptcp_redundant", "mptcp_blest", "mptcp_ecf" };
+	private static final String[] OOT_PM_MODULES = { "mptcp_fullmesh", "mptcp_ndiffports", "mptcp_binder", "mptcp_netlink" };
+
+	/**
+	 * Lazy holder, so the probe runs once and without locking afterwards
+	 */
+	private static class Holder {
+		static final MPTCPCapabilities CAPABILITIES = Probe();
+	}
+
+	/**
+	 * Gets the kernel MPTCP capabilities. The probe runs on the first call only.
+	 *
+	 * @return MPTCPCapabilities
+	 */
+	public static MPTCPCapabilities GetCapabilities() {
+		return Holder.CAPABILITIES;
+	}
+
+	/**
+	 * Converts a sysctl name to its /proc/sys path <BR>
+	 * Example: <B>net.mptcp.enabled</B> to <B>/proc/sys/net/mptcp/enabled</B>
+	 *
+	 * @param var
+	 *          Sysctl Name
+	 * @return Path
+	 */
+	public static String SysctlPath(String var) {
+		return "/proc/sys/" + var.replace('.', '/');
+	}
+
+	/**
+	 * Reads a sysctl straight from /proc/sys, without forking sysctl
+	 *
+	 * @param var
+	 *          Sysctl Name
+	 * @return Value or empty string if not available
+	 */
+	public static String ReadSysctl(String var) {
+		try {
+			return Tools.ReadFile(SysctlPath(var)).trim();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private static MPTCPCapabilities Probe() {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("mptcp_probe", null);
+		try {
+			String[] congestion = Split(ReadSysctl("net.ipv4.tcp_available_congestion_control"));
+			if (Exists(MPTCP_PROC + "mptcp_enabled"))
+				return ProbeOutOfTree(congestion);
+			if (Exists(MPTCP_PROC + "enabled"))
+				return ProbeUpstream(congestion);
+			return new MPTCPCapabilities(Flavor.NONE, "No MPTCP", null, null, null, null, new String[0], new String[0], congestion);
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_probe_duration_seconds", "Time spent probing kernel MPTCP capabilities"), start);
+		}
+	}
+
+	private static MPTCPCapabilities ProbeOutOfTree(String[] congestion) {
+		List<String> schedulers = new ArrayList<String>();
+		schedulers.add("default");
+		for (String module : OOT_SCHEDULER_MODULES)
+			if (Exists("/sys/module/" + module))
+				schedulers.add(module.substring(6));
+		AddCurrent(schedulers, "net.mptcp.mptcp_scheduler");
+
+		List<String> pms = new ArrayList<String>();
+		pms.add("default");
+		for (String module : OOT_PM_MODULES)
+			if (Exists("/sys/module/" + module))
+				pms.add(module.substring(6));
+		AddCurrent(pms, "net.mptcp.mptcp_path_manager");
+
+		// Kernel logs something like "MPTCP: Stable release v0.89.2"
+		String version = DmesgVersion();
+		return new MPTCPCapabilities(Flavor.OUT_OF_TREE, version, "net.mptcp.mptcp_enabled", Exists(MPTCP_PROC + "mptcp_checksum") ? "net.mptcp.mptcp_checksum" : null,
+		    Exists(MPTCP_PROC + "mptcp_scheduler") ? "net.mptcp.mptcp_scheduler" : null, Exists(MPTCP_PROC + "mptcp_path_manager") ? "net.mptcp.mptcp_path_manager" : null,
+		    schedulers.toArray(new String[schedulers.size()]), pms.toArray(new String[pms.size()]), congestion);
+	}
+
+	private static MPTCPCapabilities ProbeUpstream(String[] congestion) {
+		List<String> schedulers = new ArrayList<String>();
+		for (String s : Split(ReadSysctl("net.mptcp.available_schedulers")))
+			schedulers.add(s);
+		if (schedulers.isEmpty())
+			schedulers.add("default");
+		AddCurrent(schedulers, "net.mptcp.scheduler");
+
+		List<String> pms = new ArrayList<String>();
+		for (String s : Split(ReadSysctl("net.mptcp.available_path_managers")))
+			pms.add(s);
+		if (pms.isEmpty()) {
+			pms.add("kernel");
+			// pm_type: 0 in-kernel, 1 userspace (Linux 5.19+)
+			if (Exists(MPTCP_PROC + "pm_type"))
+				pms.add("userspace");
+		}
+
+		String pmSysctl = Exists(MPTCP_PROC + "path_manager") ? "net.mptcp.path_manager" : Exists(MPTCP_PROC + "pm_type") ? "net.mptcp.pm_type" : null;
+		return new MPTCPCapabilities(Flavor.UPSTREAM, "Upstream " + ReadSysctl("kernel.osrelease"), "net.mptcp.enabled",
+		    Exists(MPTCP_PROC + "checksum_enabled") ? "net.mptcp.checksum_enabled" : null, Exists(MPTCP_PROC + "scheduler") ? "net.mptcp.scheduler" : null, pmSysctl,
+		    schedulers.toArray(new String[schedulers.size()]), pms.toArray(new String[pms.size()]), congestion);
+	}
+
+	private static String DmesgVersion() {
+		String line = FindLine("/var/log/dmesg", "MPTCP: ");
+		if (line == null) {
+			try {
+				for (String l : Tools.ExecuteCMD(new String[] { "dmesg" }).split("\n")) {
+					if (l.contains("MPTCP: ")) {
+						line = l;
+						break;
+					}
+				}
+			} catch (Exception e) {
+				// Do Nothing
+			}
+		}
+		return line == null ? "Unknown" : line.substring(line.indexOf("MPTCP: ") + 7).trim();
+	}
+
+	private static String FindLine(String file, String needle) {
+		BufferedReader buffered_reader = null;
+		try {
+			buffered_reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = buffered_reader.readLine()) != null) {
+				if (line.contains(needle))
+					return line;
+			}
+			return null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (buffered_reader != null)
+					buffered_reader.close();
+			} catch (Exception ex) {
+				// Do Nothing
+			}
+		}
+	}
+
+	private static void AddCurrent(List<String> list, String var) {
+		String current = ReadSysctl(var);
+		if (!current.isEmpty() && !list.contains(current))
+			list.add(current);
+	}
+
+	private static String[] Split(String value) {
+		value = value.trim();
+		return value.isEmpty() ? new String[0] : value.split("\\s+");
+	}
+
+	private static boolean Exists(String path) {
+		return new File(path).exists();
+	}
+}
@@ -0,0 +1,142 @@
+package com.tvs.mptcpmanager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.PathProfile;
+
+/**
+ * Client for {@link ManagerDaemon}
+ *
+ * <BR>
+ * Request methods are synchronized and may be called from any thread. Once
+ * {@link #Subscribe(Listener)} is called the connection only carries events,
+ * so open another client for requests.
+ *
+ */
+public class ManagerClient {
+	/**
+	 * Receives interface events
+	 */
+	public interface Listener {
+		/**
+		 * Called on the client event thread
+		 *
+		 * @param type
+		 *          DaemonProtocol.EVENT_* constant
+		 * @param iface
+		 *          Interface Snapshot
+		 */
+		void OnEvent(byte type, InterfaceSnapshot iface);
+	}
+
+	private final LocalSocket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private volatile boolean subscribed = false;
+
+	/**
+	 * Connects to the daemon
+	 *
+	 * @param socketName
+	 *          Abstract socket name, usually {@link DaemonProtocol#SOCKET_NAME}
+	 * @throws IOException
+	 */
+	public ManagerClient(String socketName) throws IOException {
+		socket = new LocalSocket();
+		socket.connect(new LocalSocketAddress(socketName, LocalSocketAddress.Namespace.ABSTRACT));
+		in = new DataInputStream(socket.getInputStream());
+		out = new DataOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * Gets the daemon interface snapshot
+	 *
+	 * @return Interface Snapshots
+	 * @throws IOException
+	 */
+	public synchronized InterfaceSnapshot[] QueryInterfaces() throws IOException {
+		return DaemonProtocol.DecodeInterfaces(Request(DaemonProtocol.OP_QUERY_INTERFACES, new byte[0], DaemonProtocol.OP_INTERFACES));
+	}
+
+	/**
+	 * Asks the daemon to apply a PathProfile
+	 *
+	 * @param profile
+	 *          The PathProfile
+	 * @throws IOException
+	 *           On connection errors or if the daemon refused the profile
+	 */
+	public synchronized void ApplyProfile(PathProfile profile) throws IOException {
+		Request(DaemonProtocol.OP_APPLY_PROFILE, DaemonProtocol.EncodeProfile(profile), DaemonProtocol.OP_OK);
+	}
+
+	/**
+	 * Gets the daemon metrics
+	 *
+	 * @return Prometheus Text
+	 * @throws IOException
+	 */
+	public synchronized String GetMetrics() throws IOException {
+		return DaemonProtocol.DecodeText(Request(DaemonProtocol.OP_METRICS, new byte[0], DaemonProtocol.OP_TEXT));
+	}
+
+	/**
+	 * Subscribes to interface events. Events are delivered on a new thread
+	 * until the client is closed.
+	 *
+	 * @param listener
+	 *          Event Listener
+	 * @throws IOException
+	 */
+	public synchronized void Subscribe(final Listener listener) throws IOException {
+		Request(DaemonProtocol.OP_SUBSCRIBE, new byte[0], DaemonProtocol.OP_OK);
+		subscribed = true;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						DaemonProtocol.Frame frame = DaemonProtocol.ReadFrame(in);
+						if (frame.Op != DaemonProtocol.OP_EVENT)
+							continue;
+						DaemonProtocol.Event event = DaemonProtocol.DecodeEvent(frame.Payload);
+						listener.OnEvent(event.Type, event.Interface);
+					}
+				} catch (IOException e) {
+					Log.d("ManagerClient", "Event stream closed: " + e);
+				}
+			}
+		}, "ManagerClient-Events");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	public void Close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+	}
+
+	private byte[] Request(byte op, byte[] payload, byte expected) throws IOException {
+		if (subscribed)
+			throw new IOException("Connection is subscribed to events");
+		DaemonProtocol.WriteFrame(out, op, payload);
+		DaemonProtocol.Frame frame = DaemonProtocol.ReadFrame(in);
+		if (frame.Op == DaemonProtocol.OP_ERROR)
+			throw new IOException("Daemon error: " + DaemonProtocol.DecodeText(frame.Payload));
+		if (frame.Op != expected)
+			throw new IOException("Unexpected opcode " + frame.Op);
+		return frame.Payload;
+	}
+}
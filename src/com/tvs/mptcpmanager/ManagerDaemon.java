@@ -0,0 +1,584 @@
+package com.tvs.mptcpmanager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.util.Log;
+
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.NetworkInterface;
+import com.tvs.mptcptypes.PathProfile;
+
+/**
+ * Headless Manager Daemon
+ *
+ * <BR>
+ * A single long running process that owns the interface snapshot, the route
+ * state and a {@link RootShell}, and serves local clients over an abstract
+ * Unix domain socket using {@link DaemonProtocol}. Interfaces are polled once
+ * for everybody through the shared {@link SnapshotCache} and changes are
+ * pushed to subscribed clients.
+ *
+ * <BR>
+ * Android LocalSockets have no selectable channels, so every client gets a
+ * pooled thread that sleeps on its socket. Idle clients cost a thread stack
+ * and nothing else. Subscribers get a second thread draining a bounded event
+ * queue, so a subscriber that stops reading is dropped instead of blocking
+ * the poll.
+ *
+ * <BR>
+ * Any local process can connect, so requests that change routes are only
+ * accepted from root, system or uids allowed with {@link #AllowUid(int)},
+ * and their profiles are checked before anything reaches the root shell.
+ *
+ * <BR>
+ * Can be started from a root shell with: <i> <BR>
+ * app_process / com.tvs.mptcpmanager.ManagerDaemon [poll_ms] [journal|-]
+ * [device:table ...] </i> <BR>
+ * Every device:table pair (table being a {@link RouteManager.ROUTE_TABLES}
+ * name) gets a managed path, see {@link #SetPathSelector(PathSelector)}, and
+ * on upstream MPTCP kernels a subflow endpoint, see
+ * {@link #SetEndpoints(EndpointManager)}.
+ *
+ */
+public class ManagerDaemon {
+	private static final int ROOT_UID = 0, SYSTEM_UID = 1000;
+	private static final int EVENT_QUEUE = 64;
+	private static final byte[] CLOSED = new byte[0];
+	private static final AtomicInteger runningDaemons = new AtomicInteger();
+
+	private final String socketName;
+	private final long pollMillis;
+
+	private volatile boolean running;
+	private LocalServerSocket server;
+	private ExecutorService clientPool;
+	private Thread acceptThread, pollThread;
+	private RootShell shell;
+	private String journalPath = null;
+	private StateJournal journal;
+	private EndpointManager endpoints = null;
+	private PathSelector selector = null;
+	private SubflowStats stats = null;
+	private long statsMillis;
+
+	private final Object routeLock = new Object();
+	private final AtomicInteger clients = new AtomicInteger();
+	private final Set<Integer> allowedUids = new HashSet<Integer>();
+	private final CopyOnWriteArrayList<Client> subscribers = new CopyOnWriteArrayList<Client>();
+	private final SnapshotCache cache = SnapshotCache.GetDefault();
+	private volatile InterfaceSnapshot[] snapshot = new InterfaceSnapshot[0];
+
+	/**
+	 * A connected client
+	 */
+	private class Client implements Runnable {
+		final LocalSocket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final BlockingQueue<byte[]> events = new ArrayBlockingQueue<byte[]>(EVENT_QUEUE);
+
+		Client(LocalSocket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(socket.getInputStream());
+			out = new DataOutputStream(socket.getOutputStream());
+		}
+
+		synchronized void Send(byte op, byte[] payload) throws IOException {
+			DaemonProtocol.WriteFrame(out, op, payload);
+		}
+
+		/**
+		 * Sends queued events until the client is closed
+		 */
+		void Drain() {
+			try {
+				byte[] payload;
+				while ((payload = events.take()) != CLOSED)
+					Send(DaemonProtocol.OP_EVENT, payload);
+			} catch (InterruptedException e) {
+				// Daemon stopped
+			} catch (IOException e) {
+				subscribers.remove(this);
+				Close();
+			}
+		}
+
+		public void run() {
+			Metrics.GetGauge("mptcp_daemon_clients", "Connected daemon clients").Set(clients.incrementAndGet());
+			try {
+				while (running) {
+					DaemonProtocol.Frame frame = DaemonProtocol.ReadFrame(in);
+					Handle(this, frame);
+				}
+			} catch (EOFException e) {
+				// Client went away
+			} catch (IOException e) {
+				if (running)
+					Log.w("ManagerDaemon", "Client failed", e);
+			} finally {
+				subscribers.remove(this);
+				Close();
+				Metrics.GetGauge("mptcp_daemon_clients", "Connected daemon clients").Set(clients.decrementAndGet());
+			}
+		}
+
+		void Close() {
+			events.clear();
+			events.offer(CLOSED);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Do Nothing
+			}
+		}
+	}
+
+	/**
+	 * Creates a daemon
+	 *
+	 * @param socketName
+	 *          Abstract socket name, usually {@link DaemonProtocol#SOCKET_NAME}
+	 * @param pollMillis
+	 *          Interface polling interval
+	 */
+	public ManagerDaemon(String socketName, long pollMillis) {
+		this.socketName = socketName;
+		this.pollMillis = pollMillis;
+	}
+
+	/**
+	 * Keeps a {@link StateJournal} of the applied changes so a restarted daemon
+	 * adopts the routes instead of rebuilding them. Must be called before
+	 * {@link #Start()}.
+	 *
+	 * @param path
+	 *          Journal file path
+	 */
+	public synchronized void SetJournal(String path) {
+		journalPath = path;
+	}
+
+	/**
+	 * Keeps the paths of a {@link PathSelector} in step with the interfaces on
+	 * every change. With a verified journal the paths are adopted instead of
+	 * rebuilt. Must be called before {@link #Start()}.
+	 *
+	 * @param selector
+	 *          PathSelector with the managed paths
+	 */
+	public synchronized void SetPathSelector(PathSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Collects per path socket statistics on the poll thread, publishing the
+	 * <b>mptcp_path_*</b> metrics. Must be called before {@link #Start()}.
+	 *
+	 * @param stats
+	 *          SubflowStats with the path names
+	 * @param intervalMillis
+	 *          Collection interval, rounded up to the poll interval
+	 */
+	public synchronized void SetSubflowStats(SubflowStats stats, long intervalMillis) {
+		this.stats = stats;
+		this.statsMillis = intervalMillis;
+	}
+
+	/**
+	 * Allows a uid, besides root and system, to change routes
+	 *
+	 * @param uid
+	 *          Client uid
+	 */
+	public synchronized void AllowUid(int uid) {
+		allowedUids.add(uid);
+	}
+
+	/**
+	 * Keeps the upstream MPTCP endpoints of the managed interfaces in step with
+	 * their addresses. Must be called before {@link #Start()}.
+	 *
+	 * @param endpoints
+	 *          EndpointManager with the managed interfaces
+	 */
+	public synchronized void SetEndpoints(EndpointManager endpoints) {
+		this.endpoints = endpoints;
+	}
+
+	/**
+	 * Starts the daemon threads
+	 *
+	 * @throws IOException
+	 *           If the socket could not be bound
+	 */
+	public synchronized void Start() throws IOException {
+		if (running)
+			return;
+		server = new LocalServerSocket(socketName);
+		try {
+			shell = new RootShell();
+			Tools.SetRootShell(shell);
+		} catch (IOException e) {
+			Log.w("ManagerDaemon", "No root shell, privileged commands will start su each time", e);
+		}
+		if (!AddressResolver.GetDefault().StartMonitor()) {
+			// No change events, so every poll must read the addresses again
+			cache.SetMaxAge(SnapshotCache.Kind.ADDRESSES, pollMillis);
+			cache.SetMaxAge(SnapshotCache.Kind.GATEWAYS, pollMillis);
+			AddressResolver.GetDefault().SetMaxAge(pollMillis);
+		}
+		if (journalPath != null)
+			OpenJournal();
+		if (endpoints != null)
+			endpoints.Start();
+		running = true;
+		runningDaemons.incrementAndGet();
+		clientPool = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ManagerDaemon-Client");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pollThread = new Thread(new Runnable() {
+			public void run() {
+				long nextStats = 0;
+				while (running) {
+					Poll();
+					if (stats != null && System.currentTimeMillis() >= nextStats) {
+						nextStats = System.currentTimeMillis() + statsMillis;
+						try {
+							stats.Collect();
+						} catch (IOException e) {
+							Log.w("ManagerDaemon", "Failed to collect subflow statistics", e);
+						}
+					}
+					try {
+						Thread.sleep(pollMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "ManagerDaemon-Poll");
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				Accept();
+			}
+		}, "ManagerDaemon-Accept");
+		pollThread.start();
+		acceptThread.start();
+	}
+
+	/**
+	 * Stops the daemon and disconnects every client
+	 */
+	public synchronized void Stop() {
+		if (!running)
+			return;
+		running = false;
+		runningDaemons.decrementAndGet();
+		try {
+			server.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+		pollThread.interrupt();
+		clientPool.shutdownNow();
+		for (Client c : subscribers)
+			c.Close();
+		// Tools may have replaced a shell that died
+		RootShell current = Tools.GetRootShell();
+		Tools.SetRootShell(null);
+		if (shell != null)
+			shell.Close();
+		if (current != null && current != shell)
+			current.Close();
+		AddressResolver.GetDefault().StopMonitor();
+		if (endpoints != null)
+			endpoints.Stop();
+		if (journal != null)
+			journal.Close();
+	}
+
+	/**
+	 * @return True if a daemon is running in this process
+	 */
+	public static boolean IsAnyRunning() {
+		return runningDaemons.get() > 0;
+	}
+
+	/**
+	 * Waits for the daemon to stop
+	 *
+	 * @throws InterruptedException
+	 */
+	public void Join() throws InterruptedException {
+		acceptThread.join();
+	}
+
+	/**
+	 * @return Last interface snapshot
+	 */
+	public InterfaceSnapshot[] GetSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Loads the journal and adopts its state if the kernel still matches it,
+	 * otherwise removes what it describes so it is rebuilt
+	 */
+	private void OpenJournal() {
+		try {
+			journal = new StateJournal(journalPath, 64 * 1024);
+		} catch (IOException e) {
+			Log.w("ManagerDaemon", "No state journal, restarts will rebuild the routes", e);
+			return;
+		}
+		if (!journal.IsEmpty()) {
+			if (journal.Verify()) {
+				snapshot = journal.GetInterfaces();
+				if (selector != null)
+					Log.i("ManagerDaemon", "Adopted " + selector.Adopt(journal) + " paths");
+				Log.i("ManagerDaemon", "Adopted " + journal.GetRoutes().size() + " routes and " + journal.GetRules().size() + " rules");
+			} else {
+				synchronized (routeLock) {
+					journal.Undo();
+				}
+			}
+		}
+		StateJournal.SetActive(journal);
+	}
+
+	/**
+	 * Refreshes the interface snapshot and notifies subscribers of changes
+	 */
+	private void Poll() {
+		InterfaceSnapshot[] previous = snapshot;
+		InterfaceSnapshot[] current = cache.GetInterfaces();
+		if (current == previous)
+			return;
+		snapshot = current;
+
+		Map<String, InterfaceSnapshot> before = new HashMap<String, InterfaceSnapshot>();
+		for (InterfaceSnapshot s : previous)
+			before.put(s.Device, s);
+		for (InterfaceSnapshot s : current) {
+			InterfaceSnapshot old = before.remove(s.Device);
+			if (journal != null)
+				journal.RecordSnapshot(s);
+			if (old == null) {
+				Publish(DaemonProtocol.EVENT_ADDED, s);
+			} else if (s.AddressChanged(old)) {
+				cache.Invalidate(s.Device);
+				Publish(DaemonProtocol.EVENT_ADDRESS_CHANGED, s);
+			}
+		}
+		for (InterfaceSnapshot s : before.values()) {
+			if (journal != null)
+				journal.RecordRemoved(s.Device);
+			cache.Invalidate(s.Device);
+			Publish(DaemonProtocol.EVENT_REMOVED, s);
+		}
+		if (selector != null) {
+			NetworkInterface[] ifaces = new NetworkInterface[current.length];
+			for (int i = 0; i < current.length; i++)
+				ifaces[i] = current[i].ToNetworkInterface();
+			synchronized (routeLock) {
+				selector.Evaluate(ifaces, System.currentTimeMillis());
+			}
+		}
+		// Covers changes the endpoint monitor missed, no commands when in step
+		if (endpoints != null)
+			endpoints.Sync();
+	}
+
+	private void Publish(byte type, InterfaceSnapshot iface) {
+		if (subscribers.isEmpty())
+			return;
+		byte[] payload = DaemonProtocol.EncodeEvent(type, iface);
+		for (Client c : subscribers) {
+			if (!c.events.offer(payload)) {
+				// Not reading its events, it would block every other client
+				subscribers.remove(c);
+				c.Close();
+				Metrics.GetCounter("mptcp_daemon_dropped_clients_total", "Subscribers dropped for not reading their events").Increment();
+			}
+		}
+		Metrics.GetCounter("mptcp_daemon_events_total", "Interface events published", "type", String.valueOf(type)).Increment();
+	}
+
+	private void Accept() {
+		while (running) {
+			try {
+				LocalSocket socket = server.accept();
+				clientPool.execute(new Client(socket));
+			} catch (Exception e) {
+				if (running)
+					Log.w("ManagerDaemon", "Failed to accept client", e);
+			}
+		}
+	}
+
+	private void Handle(Client client, DaemonProtocol.Frame frame) throws IOException {
+		long start = System.nanoTime();
+		try {
+			switch (frame.Op) {
+				case DaemonProtocol.OP_QUERY_INTERFACES:
+					client.Send(DaemonProtocol.OP_INTERFACES, DaemonProtocol.EncodeInterfaces(snapshot));
+					break;
+				case DaemonProtocol.OP_APPLY_PROFILE:
+					if (!IsAllowed(client)) {
+						client.Send(DaemonProtocol.OP_ERROR, DaemonProtocol.EncodeText("Permission denied"));
+						break;
+					}
+					PathProfile profile = DaemonProtocol.DecodeProfile(frame.Payload);
+					InterfaceSnapshot[] current = snapshot;
+					String invalid = Validate(profile, current);
+					if (invalid != null) {
+						client.Send(DaemonProtocol.OP_ERROR, DaemonProtocol.EncodeText(invalid));
+						break;
+					}
+					NetworkInterface[] ifaces = new NetworkInterface[current.length];
+					for (int i = 0; i < current.length; i++)
+						ifaces[i] = current[i].ToNetworkInterface();
+					try {
+						synchronized (routeLock) {
+							RouteManager.ApplyProfile(profile, ifaces);
+						}
+					} catch (RuntimeException e) {
+						client.Send(DaemonProtocol.OP_ERROR, DaemonProtocol.EncodeText(e.toString()));
+						break;
+					}
+					client.Send(DaemonProtocol.OP_OK, new byte[0]);
+					break;
+				case DaemonProtocol.OP_SUBSCRIBE:
+					client.Send(DaemonProtocol.OP_OK, new byte[0]);
+					if (subscribers.addIfAbsent(client)) {
+						final Client subscriber = client;
+						clientPool.execute(new Runnable() {
+							public void run() {
+								subscriber.Drain();
+							}
+						});
+					}
+					break;
+				case DaemonProtocol.OP_METRICS:
+					client.Send(DaemonProtocol.OP_TEXT, DaemonProtocol.EncodeText(Metrics.ExportPrometheus()));
+					break;
+				default:
+					client.Send(DaemonProtocol.OP_ERROR, DaemonProtocol.EncodeText("Unknown opcode " + frame.Op));
+			}
+		} finally {
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_daemon_request_duration_seconds", "Time spent answering daemon requests", "op", String.valueOf(frame.Op)),
+			    start);
+		}
+	}
+
+	/**
+	 * @return True if the client runs as root, system or an allowed uid
+	 */
+	private boolean IsAllowed(Client client) {
+		int uid;
+		try {
+			uid = client.socket.getPeerCredentials().getUid();
+		} catch (IOException e) {
+			return false;
+		}
+		synchronized (this) {
+			return uid == ROOT_UID || uid == SYSTEM_UID || allowedUids.contains(uid);
+		}
+	}
+
+	/**
+	 * Checks that every profile entry names a known interface, a routing table
+	 * and an IPv4 gateway, since they end up in root ip commands
+	 *
+	 * @return Error message or null if valid
+	 */
+	private static String Validate(PathProfile profile, InterfaceSnapshot[] current) {
+		for (PathProfile.Entry entry : profile.GetEntries()) {
+			boolean known = false;
+			for (InterfaceSnapshot s : current)
+				if (s.Device.equals(entry.Device))
+					known = true;
+			if (!known)
+				return "Unknown interface " + entry.Device;
+			boolean table = entry.Table.matches("[0-9]{1,10}");
+			for (RouteManager.ROUTE_TABLES t : RouteManager.ROUTE_TABLES.values())
+				if (t.name().equalsIgnoreCase(entry.Table))
+					table = true;
+			if (!table)
+				return "Invalid table " + entry.Table;
+			if (!entry.Gateway.isEmpty() && !IsIPv4(entry.Gateway))
+				return "Invalid gateway " + entry.Gateway;
+		}
+		return null;
+	}
+
+	private static boolean IsIPv4(String address) {
+		String[] parts = address.split("\\.", -1);
+		if (parts.length != 4)
+			return false;
+		for (String part : parts)
+			if (!part.matches("[0-9]{1,3}") || Integer.parseInt(part) > 255)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Runs the daemon until killed
+	 *
+	 * @param args
+	 *          Optional polling interval in milliseconds, journal path (- for
+	 *          none) and device:table pairs to manage
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		long poll = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		ManagerDaemon daemon = new ManagerDaemon(DaemonProtocol.SOCKET_NAME, poll);
+		if (args.length > 1 && !args[1].equals("-"))
+			daemon.SetJournal(args[1]);
+		SubflowStats stats = new SubflowStats();
+		if (args.length > 2) {
+			PathSelector selector = new PathSelector();
+			// Upstream kernels only use the paths that have an endpoint
+			EndpointManager endpoints = EndpointManager.IsSupported() ? new EndpointManager() : null;
+			for (int i = 2; i < args.length; i++) {
+				int colon = args[i].indexOf(':');
+				String device = args[i].substring(0, colon);
+				RouteManager.ROUTE_TABLES table = RouteManager.ROUTE_TABLES.valueOf(args[i].substring(colon + 1).toUpperCase());
+				selector.AddPath(device, String.valueOf(table.num));
+				stats.SetPath(device, table);
+				if (endpoints != null)
+					endpoints.Manage(device, EnumSet.of(EndpointManager.Flag.SUBFLOW));
+			}
+			daemon.SetPathSelector(selector);
+			if (endpoints != null) {
+				int max = Math.min(8, (args.length - 2) * 2);
+				endpoints.SetLimits(max, max);
+				daemon.SetEndpoints(endpoints);
+			}
+		}
+		daemon.SetSubflowStats(stats, Math.max(poll, 10000));
+		daemon.Start();
+		daemon.Join();
+	}
+}
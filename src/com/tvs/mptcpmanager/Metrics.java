@@ -0,0 +1,310 @@
+package com.tvs.mptcpmanager;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.tvs.mptcptypes.Counter;
+import com.tvs.mptcptypes.Gauge;
+import com.tvs.mptcptypes.Histogram;
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Process wide metrics registry.
+ *
+ * <BR>
+ * Counters, gauges and histograms are created on first use and kept forever,
+ * so callers can either cache the returned instance or look it up every time.
+ * Histograms record <b>microseconds</b> and are exported in seconds.
+ *
+ * <BR>
+ * The registry can be exported as Prometheus text format (see
+ * {@link #ExportPrometheus()}) or as JSON (see {@link #ExportJSON()}).
+ *
+ */
+public class Metrics {
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+	private static final String SUMMARY = "summary";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	/**
+	 * A metric name with its help text, type and labeled children
+	 */
+	private static class Family {
+		final String name, help, type;
+		final ConcurrentSkipListMap<String, Child> children = new ConcurrentSkipListMap<String, Child>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A labeled metric inside a Family
+	 */
+	private static class Child {
+		final String[] labels;
+		final Object metric;
+
+		Child(String[] labels, Object metric) {
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	/**
+	 * Last interface counters seen, used to compute rates
+	 */
+	private static class InterfaceSample {
+		final long time;
+		final long rxBytes, txBytes, rxPackets, txPackets;
+
+		InterfaceSample(long time, NetworkInterface iface) {
+			this.time = time;
+			rxBytes = iface.RXBytes & 0xFFFFFFFFL;
+			txBytes = iface.TXBytes & 0xFFFFFFFFL;
+			rxPackets = iface.RXPackets & 0xFFFFFFFFL;
+			txPackets = iface.TXPackets & 0xFFFFFFFFL;
+		}
+	}
+
+	private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+	private static final ConcurrentMap<String, InterfaceSample> ifaceSamples = new ConcurrentHashMap<String, InterfaceSample>();
+
+	/**
+	 * Gets or creates a Counter
+	 *
+	 * @param name
+	 *          Metric Name
+	 * @param help
+	 *          Metric Description
+	 * @param labels
+	 *          Label name and value pairs
+	 * @return The Counter
+	 */
+	public static Counter GetCounter(String name, String help, String... labels) {
+		Object m = Find(name, COUNTER, labels);
+		if (m == null)
+			m = Register(name, help, COUNTER, labels, new Counter());
+		return (Counter) m;
+	}
+
+	/**
+	 * Gets or creates a Gauge
+	 *
+	 * @param name
+	 *          Metric Name
+	 * @param help
+	 *          Metric Description
+	 * @param labels
+	 *          Label name and value pairs
+	 * @return The Gauge
+	 */
+	public static Gauge GetGauge(String name, String help, String... labels) {
+		Object m = Find(name, GAUGE, labels);
+		if (m == null)
+			m = Register(name, help, GAUGE, labels, new Gauge());
+		return (Gauge) m;
+	}
+
+	/**
+	 * Gets or creates a latency Histogram (values in microseconds)
+	 *
+	 * @param name
+	 *          Metric Name
+	 * @param help
+	 *          Metric Description
+	 * @param labels
+	 *          Label name and value pairs
+	 * @return The Histogram
+	 */
+	public static Histogram GetHistogram(String name, String help, String... labels) {
+		Object m = Find(name, SUMMARY, labels);
+		if (m == null)
+			m = Register(name, help, SUMMARY, labels, new Histogram());
+		return (Histogram) m;
+	}
+
+	/**
+	 * Records the time elapsed since <b>startNanos</b> in a histogram
+	 *
+	 * @param histogram
+	 *          The Histogram
+	 * @param startNanos
+	 *          Start time from System.nanoTime()
+	 */
+	public static void ObserveSince(Histogram histogram, long startNanos) {
+		histogram.Record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Updates the per interface gauges (byte and packet rates, errors and drops)
+	 * from a freshly updated NetworkInterface.
+	 *
+	 * @param iface
+	 *          The NetworkInterface
+	 */
+	public static void ObserveInterface(NetworkInterface iface) {
+		String dev = iface.Device;
+		long now = System.nanoTime();
+		InterfaceSample current = new InterfaceSample(now, iface);
+		InterfaceSample last = ifaceSamples.put(dev, current);
+
+		GetGauge("mptcp_iface_rx_errors", "Receiver errors", "iface", dev).Set(iface.RXErrors);
+		GetGauge("mptcp_iface_tx_errors", "Transmission errors", "iface", dev).Set(iface.TXErrors);
+		GetGauge("mptcp_iface_rx_drops", "Receiver drops", "iface", dev).Set(iface.RXDrops);
+		GetGauge("mptcp_iface_tx_drops", "Transmission drops", "iface", dev).Set(iface.TXDrops);
+
+		if (last != null && now > last.time) {
+			double seconds = (now - last.time) / 1e9;
+			GetGauge("mptcp_iface_rx_bytes_per_second", "Receive rate in bytes per second", "iface", dev).Set(Rate(last.rxBytes, current.rxBytes, seconds));
+			GetGauge("mptcp_iface_tx_bytes_per_second", "Transmit rate in bytes per second", "iface", dev).Set(Rate(last.txBytes, current.txBytes, seconds));
+			GetGauge("mptcp_iface_rx_packets_per_second", "Receive rate in packets per second", "iface", dev).Set(Rate(last.rxPackets, current.rxPackets, seconds));
+			GetGauge("mptcp_iface_tx_packets_per_second", "Transmit rate in packets per second", "iface", dev).Set(Rate(last.txPackets, current.txPackets, seconds));
+		}
+	}
+
+	/**
+	 * Exports all metrics in Prometheus text exposition format
+	 *
+	 * @return Prometheus Text
+	 */
+	public static String ExportPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Family f : families.values()) {
+			out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+			out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+			for (Map.Entry<String, Child> child : f.children.entrySet()) {
+				String labels = child.getKey();
+				Object m = child.getValue().metric;
+				if (m instanceof Counter) {
+					AppendSample(out, f.name, labels, null, ((Counter) m).Get());
+				} else if (m instanceof Gauge) {
+					AppendSample(out, f.name, labels, null, ((Gauge) m).Get());
+				} else {
+					Histogram h = (Histogram) m;
+					for (double q : QUANTILES)
+						AppendSample(out, f.name, labels, "quantile=\"" + q + "\"", h.GetQuantile(q) / 1e6);
+					AppendSample(out, f.name + "_sum", labels, null, h.GetSum() / 1e6);
+					AppendSample(out, f.name + "_count", labels, null, h.GetCount());
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Exports all metrics as a JSON Object. <BR>
+	 * Example: <B>{"mptcp_commands_total":[{"labels":{"kind":"su"},"value":3}]}</B>
+	 *
+	 * @return JSON Text
+	 */
+	public static String ExportJSON() {
+		StringBuilder out = new StringBuilder(4096);
+		out.append('{');
+		for (Iterator<Family> fi = families.values().iterator(); fi.hasNext();) {
+			Family f = fi.next();
+			out.append('"').append(f.name).append("\":[");
+			for (Iterator<Child> ci = f.children.values().iterator(); ci.hasNext();) {
+				Child child = ci.next();
+				Object m = child.metric;
+				out.append("{\"labels\":{");
+				for (int i = 0; i + 1 < child.labels.length; i += 2) {
+					if (i > 0)
+						out.append(',');
+					out.append('"').append(child.labels[i]).append("\":\"").append(Escape(child.labels[i + 1])).append('"');
+				}
+				out.append("},");
+				if (m instanceof Counter) {
+					out.append("\"value\":").append(((Counter) m).Get());
+				} else if (m instanceof Gauge) {
+					out.append("\"value\":").append(((Gauge) m).Get());
+				} else {
+					Histogram h = (Histogram) m;
+					out.append("\"count\":").append(h.GetCount());
+					out.append(",\"sum_us\":").append(h.GetSum());
+					out.append(",\"max_us\":").append(h.GetMax());
+					for (int q = 0; q < QUANTILES.length; q++)
+						out.append(",\"").append(QUANTILE_NAMES[q]).append("_us\":").append(h.GetQuantile(QUANTILES[q]));
+				}
+				out.append('}');
+				if (ci.hasNext())
+					out.append(',');
+			}
+			out.append(']');
+			if (fi.hasNext())
+				out.append(',');
+		}
+		out.append('}');
+		return out.toString();
+	}
+
+	private static double Rate(long before, long after, double seconds) {
+		// /proc/net/dev counters are 32 bit on some kernels, so take care of wraps.
+		long delta = after >= before ? after - before : after + 0x100000000L - before;
+		return delta / seconds;
+	}
+
+	private static void AppendSample(StringBuilder out, String name, String labels, String extra, double value) {
+		out.append(name);
+		if (!labels.isEmpty() || extra != null) {
+			out.append('{').append(labels);
+			if (extra != null)
+				out.append(labels.isEmpty() ? "" : ",").append(extra);
+			out.append('}');
+		}
+		out.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			out.append((long) value);
+		else
+			out.append(value);
+		out.append('\n');
+	}
+
+	private static String LabelKey(String[] labels) {
+		if (labels.length == 0)
+			return "";
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0)
+				key.append(',');
+			key.append(labels[i]).append("=\"").append(Escape(labels[i + 1])).append('"');
+		}
+		return key.toString();
+	}
+
+	private static String Escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static Object Find(String name, String type, String[] labels) {
+		Family f = families.get(name);
+		if (f == null)
+			return null;
+		if (!f.type.equals(type))
+			throw new IllegalArgumentException("Metric " + name + " already registered as " + f.type);
+		Child c = f.children.get(LabelKey(labels));
+		return c == null ? null : c.metric;
+	}
+
+	private static Object Register(String name, String help, String type, String[] labels, Object metric) {
+		Family f = families.get(name);
+		if (f == null) {
+			Family created = new Family(name, help, type);
+			f = families.putIfAbsent(name, created);
+			if (f == null)
+				f = created;
+		}
+		if (!f.type.equals(type))
+			throw new IllegalArgumentException("Metric " + name + " already registered as " + f.type);
+		Child existing = f.children.putIfAbsent(LabelKey(labels), new Child(labels.clone(), metric));
+		return existing == null ? metric : existing.metric;
+	}
+}
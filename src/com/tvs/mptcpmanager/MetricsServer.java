@@ -0,0 +1,152 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.util.Log;
+
+/**
+ * Exports {@link Metrics} over a local socket.
+ *
+ * <BR>
+ * Listens either on <b>127.0.0.1:port</b> (TCP) or on an abstract Unix domain
+ * socket. Each connection reads one request line and answers with a single
+ * dump: <i> <BR>
+ * GET /metrics HTTP/1.1 - Prometheus text over HTTP <BR>
+ * GET /metrics.json HTTP/1.1 - JSON over HTTP <BR>
+ * json - raw JSON (any other line gives Prometheus text) </i>
+ *
+ */
+public class MetricsServer {
+	private final int port;
+	private final String socketName;
+	private volatile boolean running;
+	private ServerSocket tcpServer;
+	private LocalServerSocket localServer;
+	private Thread thread;
+
+	/**
+	 * Creates a server listening on localhost TCP port
+	 *
+	 * @param port
+	 *          TCP Port
+	 */
+	public MetricsServer(int port) {
+		this.port = port;
+		this.socketName = null;
+	}
+
+	/**
+	 * Creates a server listening on an abstract Unix domain socket
+	 *
+	 * @param socketName
+	 *          Socket name (without the leading @)
+	 */
+	public MetricsServer(String socketName) {
+		this.port = -1;
+		this.socketName = socketName;
+	}
+
+	/**
+	 * Starts serving on a background thread
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void Start() throws IOException {
+		if (running)
+			return;
+		if (socketName != null)
+			localServer = new LocalServerSocket(socketName);
+		else
+			tcpServer = new ServerSocket(port, 8, InetAddress.getByName("127.0.0.1"));
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				Serve();
+			}
+		}, "MetricsServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the server
+	 */
+	public synchronized void Stop() {
+		running = false;
+		try {
+			if (tcpServer != null)
+				tcpServer.close();
+			if (localServer != null)
+				localServer.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+		tcpServer = null;
+		localServer = null;
+	}
+
+	private void Serve() {
+		while (running) {
+			try {
+				if (localServer != null) {
+					LocalSocket client = localServer.accept();
+					try {
+						client.setSoTimeout(2000);
+						Answer(client.getInputStream(), client.getOutputStream());
+					} finally {
+						client.close();
+					}
+				} else {
+					Socket client = tcpServer.accept();
+					try {
+						client.setSoTimeout(2000);
+						Answer(client.getInputStream(), client.getOutputStream());
+					} finally {
+						client.close();
+					}
+				}
+			} catch (Exception e) {
+				if (running)
+					Log.w("MetricsServer", "Failed to answer client", e);
+			}
+		}
+	}
+
+	private static void Answer(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String request = reader.readLine();
+		if (request == null)
+			return;
+		boolean http = request.startsWith("GET ");
+		String[] tokens = request.trim().split("\\s+");
+		if (http) {
+			// Drain the headers so the client does not get a reset
+			String line;
+			while ((line = reader.readLine()) != null && !line.isEmpty())
+				;
+			if (tokens.length < 2) {
+				out.write("HTTP/1.0 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+				out.flush();
+				return;
+			}
+		}
+		boolean json = http ? tokens[1].endsWith(".json") : request.trim().equalsIgnoreCase("json");
+		byte[] body = (json ? Metrics.ExportJSON() : Metrics.ExportPrometheus()).getBytes("UTF-8");
+		if (http) {
+			String header = "HTTP/1.0 200 OK\r\nContent-Type: " + (json ? "application/json" : "text/plain; version=0.0.4") + "\r\nContent-Length: " + body.length
+			    + "\r\nConnection: close\r\n\r\n";
+			out.write(header.getBytes("UTF-8"));
+		}
+		out.write(body);
+		out.flush();
+	}
+}
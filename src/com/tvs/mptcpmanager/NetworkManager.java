@@ -1,8 +1,12 @@
 package com.tvs.mptcpmanager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.MPTCPCapabilities;
+import com.tvs.mptcptypes.MPTCPCapabilities.Flavor;
 import com.tvs.mptcptypes.NetworkInterface;
 
 
@@ -19,7 +23,13 @@ public class NetworkManager {
 	 * @param flag
 	 */
 	public static void MPTCP_SetChecksum(boolean flag)	{
-		Tools.WriteSysctl("net.mptcp.mptcp_checksum", (flag?"1":"2"));
+		MPTCPCapabilities caps = MPTCPProbe.GetCapabilities();
+		if(caps.ChecksumSysctl == null)
+			return;
+		if(caps.KernelFlavor == Flavor.UPSTREAM)
+			Tools.WriteSysctl(caps.ChecksumSysctl, (flag?"1":"0"));
+		else
+			Tools.WriteSysctl(caps.ChecksumSysctl, (flag?"1":"2"));
 	}
 
 	/**
@@ -27,7 +37,13 @@ public class NetworkManager {
 	 * @param flag
 	 */
 	public static void MPTCP_SetEnabled(boolean flag)	{
-		Tools.WriteSysctl("net.mptcp.mptcp_enabled", (flag?"1":"2"));
+		MPTCPCapabilities caps = MPTCPProbe.GetCapabilities();
+		if(caps.EnabledSysctl == null)
+			return;
+		if(caps.KernelFlavor == Flavor.UPSTREAM)
+			Tools.WriteSysctl(caps.EnabledSysctl, (flag?"1":"0"));
+		else
+			Tools.WriteSysctl(caps.EnabledSysctl, (flag?"1":"2"));
 	}
 
 	/**
@@ -35,7 +51,8 @@ public class NetworkManager {
 	 * @return True if enabled, false if not
 	 */
 	public static boolean MPTCP_GetChecksum()	{
-		return Tools.ReadSysctl("net.mptcp.mptcp_checksum").contentEquals("1");
+		MPTCPCapabilities caps = MPTCPProbe.GetCapabilities();
+		return caps.ChecksumSysctl != null && MPTCPProbe.ReadSysctl(caps.ChecksumSysctl).contentEquals("1");
 	}
 
 	/**
@@ -43,21 +60,22 @@ public class NetworkManager {
 	 * @return True if enabled, false if not
 	 */
 	public static boolean MPTCP_GetEnabled()	{
-		return Tools.ReadSysctl("net.mptcp.mptcp_enabled").contentEquals("1");
+		MPTCPCapabilities caps = MPTCPProbe.GetCapabilities();
+		return caps.EnabledSysctl != null && MPTCPProbe.ReadSysctl(caps.EnabledSysctl).contentEquals("1");
 	}
 
 	/**
 	 * Gets a list of NetworkInterface Objects filled with all network
-	 * interfaces data.
+	 * interfaces data, from the shared SnapshotCache so polling callers do not
+	 * start processes on every call.
 	 * @return NetworkInterface Array
+	 * @see #GetInterfaceSnapshots()
 	 */
 	public static NetworkInterface[] GetInterfaces()	{
-		String[] devs = Tools.GetNetworkInterfacesList();
-		NetworkInterface[] ifaces = new NetworkInterface[devs.length];
-		for(int i=0;i<devs.length;i++)	{
-			ifaces[i] = new NetworkInterface(devs[i]);
-			ifaces[i].Update();
-		}
+		InterfaceSnapshot[] snapshots = GetInterfaceSnapshots();
+		NetworkInterface[] ifaces = new NetworkInterface[snapshots.length];
+		for(int i=0;i<snapshots.length;i++)
+			ifaces[i] = snapshots[i].ToNetworkInterface();
 		return ifaces;
 	}
 	
@@ -67,51 +85,56 @@ public class NetworkManager {
 	 * @return NetworkInterface List
 	 */
 	public static List<NetworkInterface> GetInterfacesList()	{
-		String[] devs = Tools.GetNetworkInterfacesList();
-		NetworkInterface[] ifaces_array = new NetworkInterface[devs.length];
-		for(int i=0;i<devs.length;i++)	{
-			ifaces_array[i] = new NetworkInterface(devs[i]);
-			ifaces_array[i].Update();
-		}
-		List<NetworkInterface> ifaces = new ArrayList<NetworkInterface>(ifaces_array.length);
-		return ifaces;
+		return new ArrayList<NetworkInterface>(Arrays.asList(GetInterfaces()));
 	}
 
 	/**
 	 * Gets a list of NetworkInterface Objects filled with all network
-	 * interfaces data.
+	 * interfaces data, from the shared SnapshotCache.
 	 * @param ifaces NetworkInterface Array to be updated
-	 * @return NetworkInterface Array
+	 * @return NetworkInterface Array, the same one if the interfaces did not change
 	 */
 	public static NetworkInterface[] GetInterfaces(NetworkInterface[] ifaces)	{
-		String[] devs = Tools.GetNetworkInterfacesList();
-		if(devs.length == ifaces.length)	{
-			for(int i=0;i<ifaces.length;i++)	{
-				ifaces[i].Update();
-			}		
-			return ifaces;
-		}else{
-			ifaces = GetInterfaces();
-			return ifaces;
-		}
+		InterfaceSnapshot[] snapshots = GetInterfaceSnapshots();
+		if(!SameDevices(snapshots, ifaces))
+			return GetInterfaces();
+		for(int i=0;i<ifaces.length;i++)
+			snapshots[i].CopyTo(ifaces[i]);
+		return ifaces;
 	}
 	
 
 	/**
 	 * Gets a list of NetworkInterface Objects filled with all network
-	 * interfaces data.
-	 * @param ifaces NetworkInterface Array to be updated
-	 * @return NetworkInterface Array
+	 * interfaces data, from the shared SnapshotCache.
+	 * @param ifaces NetworkInterface List to be updated
+	 * @return NetworkInterface List, the same one if the interfaces did not change
 	 */
 	public static List<NetworkInterface> GetInterfacesList(List<NetworkInterface> ifaces)	{
-		String[] devs = Tools.GetNetworkInterfacesList();
-		if(devs.length == ifaces.size())	{
-			for(NetworkInterface net : ifaces)
-				net.Update();
-			return ifaces;
-		}else{
-			ifaces = GetInterfacesList();
-			return ifaces;
-		}
+		InterfaceSnapshot[] snapshots = GetInterfaceSnapshots();
+		NetworkInterface[] array = ifaces.toArray(new NetworkInterface[ifaces.size()]);
+		if(!SameDevices(snapshots, array))
+			return GetInterfacesList();
+		for(int i=0;i<array.length;i++)
+			snapshots[i].CopyTo(array[i]);
+		return ifaces;
+	}
+
+	/**
+	 * Gets immutable snapshots of all network interfaces from the shared
+	 * SnapshotCache. Concurrent callers share one refresh.
+	 * @return InterfaceSnapshot Array
+	 */
+	public static InterfaceSnapshot[] GetInterfaceSnapshots()	{
+		return SnapshotCache.GetDefault().GetInterfaces();
+	}
+
+	private static boolean SameDevices(InterfaceSnapshot[] snapshots, NetworkInterface[] ifaces)	{
+		if(snapshots.length != ifaces.length)
+			return false;
+		for(int i=0;i<ifaces.length;i++)
+			if(!snapshots[i].Device.equals(ifaces[i].Device))
+				return false;
+		return true;
 	}
 }
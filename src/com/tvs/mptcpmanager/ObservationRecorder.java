@@ -0,0 +1,366 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Records the interface, address, counter, gateway, probe and thermal
+ * observations made by {@link Tools} and {@link RouteManager} into a compact
+ * binary trace that {@link ReplayEngine} can play back.
+ *
+ * <BR>
+ * Trace layout: <i> <BR>
+ * int MAGIC, byte VERSION, long start time in milliseconds <BR>
+ * then records of: byte type, varint milliseconds since previous record,
+ * payload </i> <BR>
+ * Strings are written once and then referenced by a varint id. Counters are
+ * written as zigzag varint deltas from the previous record of the same
+ * device, and addresses and gateways only when they change, so an idle
+ * interface costs a few bytes per sample.
+ *
+ * <BR>
+ * Install a recorder with {@link #SetActive(ObservationRecorder)}; while one
+ * is active every live observation is appended to it.
+ *
+ */
+public class ObservationRecorder {
+	public static final int MAGIC = 0x4D505452; // "MPTR"
+	public static final int VERSION = 3; // 2 added REMOVED, 3 FREQUENCY_CAP
+
+	// Record types
+	public static final int ADDRESS = 1; // dev, ip, mask, broadcast, mac
+	public static final int COUNTERS = 2; // dev, 8 counter deltas
+	public static final int GATEWAY = 3; // dev, gateway
+	public static final int PROBE = 4; // address, dev, ok
+	public static final int TEMPERATURE = 5; // value
+	public static final int FREQUENCY = 6; // value
+	public static final int REMOVED = 7; // dev
+	public static final int FREQUENCY_CAP = 8; // percent
+
+	// Counters in the order they are written
+	static final int RX_BYTES = 0, RX_PACKETS = 1, RX_ERRORS = 2, RX_DROPS = 3;
+	static final int TX_BYTES = 4, TX_PACKETS = 5, TX_ERRORS = 6, TX_DROPS = 7;
+	static final int NUM_COUNTERS = 8;
+
+	private static volatile ObservationRecorder active = null;
+
+	private final DataOutputStream out;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+	private final Map<String, int[]> counters = new HashMap<String, int[]>();
+	private final Map<String, String> addresses = new HashMap<String, String>();
+	private final Map<String, String> gateways = new HashMap<String, String>();
+	private long lastTime;
+	private long records = 0;
+	private boolean failed = false;
+
+	/**
+	 * Creates a recorder writing to a file
+	 *
+	 * @param path
+	 *          Trace file path, overwritten
+	 * @throws IOException
+	 */
+	public ObservationRecorder(String path) throws IOException {
+		this(new FileOutputStream(path));
+	}
+
+	/**
+	 * Creates a recorder writing to a stream
+	 *
+	 * @param stream
+	 *          Output Stream, closed by {@link #Close()}
+	 * @throws IOException
+	 */
+	public ObservationRecorder(OutputStream stream) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream, 16 * 1024));
+		lastTime = System.currentTimeMillis();
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(lastTime);
+	}
+
+	/**
+	 * Sets the recorder that receives live observations
+	 *
+	 * @param recorder
+	 *          The recorder or null to stop recording
+	 */
+	public static void SetActive(ObservationRecorder recorder) {
+		active = recorder;
+	}
+
+	/**
+	 * @return Active recorder or null
+	 */
+	public static ObservationRecorder GetActive() {
+		return active;
+	}
+
+	/**
+	 * Records the addressing of an updated interface
+	 *
+	 * @param iface
+	 *          Updated NetworkInterface
+	 */
+	public synchronized void RecordAddress(NetworkInterface iface) {
+		String key = iface.IPAddress + " " + iface.NetworkMask + " " + iface.Broadcast + " " + iface.Address;
+		if (key.equals(addresses.get(iface.Device)))
+			return;
+		try {
+			Begin(ADDRESS);
+			WriteString(iface.Device);
+			WriteString(iface.IPAddress);
+			WriteString(iface.NetworkMask);
+			WriteString(iface.Broadcast);
+			WriteString(iface.Address);
+			addresses.put(iface.Device, key);
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records the traffic counters of an updated interface
+	 *
+	 * @param iface
+	 *          Updated NetworkInterface
+	 */
+	public synchronized void RecordCounters(NetworkInterface iface) {
+		int[] last = counters.get(iface.Device);
+		if (last == null) {
+			last = new int[NUM_COUNTERS];
+			counters.put(iface.Device, last);
+		}
+		try {
+			Begin(COUNTERS);
+			WriteString(iface.Device);
+			WriteCounter(last, RX_BYTES, iface.RXBytes);
+			WriteCounter(last, RX_PACKETS, iface.RXPackets);
+			WriteCounter(last, RX_ERRORS, iface.RXErrors);
+			WriteCounter(last, RX_DROPS, iface.RXDrops);
+			WriteCounter(last, TX_BYTES, iface.TXBytes);
+			WriteCounter(last, TX_PACKETS, iface.TXPackets);
+			WriteCounter(last, TX_ERRORS, iface.TXErrors);
+			WriteCounter(last, TX_DROPS, iface.TXDrops);
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records an interface gateway lookup
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @param gateway
+	 *          Gateway Address
+	 */
+	public synchronized void RecordGateway(String iface, String gateway) {
+		if (gateway == null)
+			gateway = "";
+		if (gateway.equals(gateways.get(iface)))
+			return;
+		try {
+			Begin(GATEWAY);
+			WriteString(iface);
+			WriteString(gateway);
+			gateways.put(iface, gateway);
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records that an interface disappeared
+	 *
+	 * @param iface
+	 *          Network Interface
+	 */
+	public synchronized void RecordRemoved(String iface) {
+		if (!addresses.containsKey(iface) && !counters.containsKey(iface) && !gateways.containsKey(iface))
+			return;
+		try {
+			Begin(REMOVED);
+			WriteString(iface);
+			addresses.remove(iface);
+			counters.remove(iface);
+			gateways.remove(iface);
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records a connectivity probe
+	 *
+	 * @param address
+	 *          Target Address
+	 * @param iface
+	 *          Interface used
+	 * @param ok
+	 *          Probe result
+	 */
+	public synchronized void RecordProbe(String address, String iface, boolean ok) {
+		try {
+			Begin(PROBE);
+			WriteString(address);
+			WriteString(iface);
+			out.writeBoolean(ok);
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records a system temperature reading
+	 *
+	 * @param temperature
+	 *          System Temperature
+	 */
+	public synchronized void RecordTemperature(long temperature) {
+		try {
+			Begin(TEMPERATURE);
+			WriteVarLong(out, ZigZag(temperature));
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records an average processor clock reading
+	 *
+	 * @param frequency
+	 *          Average Clock in kHz
+	 */
+	public synchronized void RecordFrequency(long frequency) {
+		try {
+			Begin(FREQUENCY);
+			WriteVarLong(out, ZigZag(frequency));
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Records a processor clock cap reading
+	 *
+	 * @param cap
+	 *          Frequency cap in percent of the hardware maximum
+	 */
+	public synchronized void RecordFrequencyCap(long cap) {
+		try {
+			Begin(FREQUENCY_CAP);
+			WriteVarLong(out, ZigZag(cap));
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * @return Number of records written
+	 */
+	public synchronized long GetRecords() {
+		return records;
+	}
+
+	/**
+	 * Flushes buffered records to the output
+	 */
+	public synchronized void Flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			Failed(e);
+		}
+	}
+
+	/**
+	 * Flushes and closes the trace. If this is the active recorder it is
+	 * deactivated.
+	 */
+	public synchronized void Close() {
+		if (active == this)
+			active = null;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+		failed = true;
+	}
+
+	private void Begin(int type) throws IOException {
+		if (failed)
+			throw new IOException("Recorder closed");
+		long now = System.currentTimeMillis();
+		out.writeByte(type);
+		// Clock steps backwards are recorded as no time passing
+		WriteVarLong(out, Math.max(0, now - lastTime));
+		lastTime = Math.max(now, lastTime);
+		records++;
+	}
+
+	private void WriteString(String s) throws IOException {
+		if (s == null)
+			s = "";
+		Integer id = strings.get(s);
+		if (id != null) {
+			WriteVarLong(out, id);
+		} else {
+			// A new id is always the next one, followed by the string itself
+			WriteVarLong(out, strings.size());
+			out.writeUTF(s);
+			strings.put(s, strings.size());
+		}
+	}
+
+	private void WriteCounter(int[] last, int index, int value) throws IOException {
+		// int arithmetic keeps wrapped 32 bit counters exact
+		WriteVarLong(out, ZigZag(value - last[index]));
+		last[index] = value;
+	}
+
+	private void Failed(IOException e) {
+		if (!failed)
+			Log.w("ObservationRecorder", "Recording stopped", e);
+		failed = true;
+	}
+
+	static long ZigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long UnZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void WriteVarLong(DataOutput out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	static long ReadVarLong(DataInput in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+}
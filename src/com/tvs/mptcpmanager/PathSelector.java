@@ -0,0 +1,164 @@
+package com.tvs.mptcpmanager;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Keeps one MPTCP path per managed interface in step with its state.
+ *
+ * <BR>
+ * A path is usable when its interface exists, has an IP address and a gateway
+ * and its last connectivity probe (see {@link #SetReachable(String, boolean)})
+ * did not fail. Usable paths are brought up with
+ * {@link RouteManager#InterfaceUp}, paths that stop being usable are torn down
+ * with {@link RouteManager#InterfaceDown}, and a path whose address or
+ * gateway changed is rebuilt. A path is only recorded as up or down once its
+ * route commands succeeded, so failed ones are retried on the next evaluation.
+ *
+ * <BR>
+ * Call {@link #Evaluate(NetworkInterface[], long)} periodically with freshly
+ * updated interfaces.
+ *
+ */
+public class PathSelector {
+	/**
+	 * Managed path state
+	 */
+	private static class Path {
+		final String table;
+		NetworkInterface iface = null; // Interface the path was built with, null if down
+		String gateway = "";
+
+		Path(String table) {
+			this.table = table;
+		}
+	}
+
+	private final Map<String, Path> paths = new LinkedHashMap<String, Path>();
+	private final Map<String, Boolean> reachable = new HashMap<String, Boolean>();
+
+	/**
+	 * Manages the path of an interface
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param table
+	 *          Network Routing Table (ethernet, wireless or modem)
+	 * @return this
+	 */
+	public synchronized PathSelector AddPath(String device, String table) {
+		paths.put(device, new Path(table));
+		return this;
+	}
+
+	/**
+	 * Sets the result of the last connectivity probe of an interface, usually
+	 * from {@link Tools#CheckConnection(String, String)}
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param ok
+	 *          Probe result
+	 */
+	public synchronized void SetReachable(String device, boolean ok) {
+		reachable.put(device, ok);
+	}
+
+	/**
+	 * Marks as up, without issuing commands, the managed paths that a verified
+	 * {@link StateJournal} shows were up before a restart
+	 *
+	 * @param journal
+	 *          Verified StateJournal
+	 * @return Number of paths adopted
+	 */
+	public synchronized int Adopt(StateJournal journal) {
+		int adopted = 0;
+		for (InterfaceSnapshot s : journal.GetInterfaces()) {
+			Path path = paths.get(s.Device);
+			if (path == null || s.Gateway.isEmpty() || !journal.HasRule(path.table, s.IPAddress))
+				continue;
+			path.iface = s.ToNetworkInterface();
+			path.gateway = s.Gateway;
+			adopted++;
+		}
+		return adopted;
+	}
+
+	/**
+	 * @param device
+	 *          Network Interface
+	 * @return True if the interface path is up
+	 */
+	public synchronized boolean IsUp(String device) {
+		Path path = paths.get(device);
+		return path != null && path.iface != null;
+	}
+
+	/**
+	 * Brings paths up or down to match the interfaces state
+	 *
+	 * @param ifaces
+	 *          Updated NetworkInterface Array
+	 * @param now
+	 *          Current time in milliseconds
+	 * @return Number of paths changed
+	 */
+	public synchronized int Evaluate(NetworkInterface[] ifaces, long now) {
+		int changes = 0;
+		for (Map.Entry<String, Path> e : paths.entrySet()) {
+			String device = e.getKey();
+			Path path = e.getValue();
+			NetworkInterface iface = null;
+			for (NetworkInterface i : ifaces)
+				if (i.Device.equals(device))
+					iface = i;
+
+			String gateway = "";
+			boolean usable = iface != null && HasAddress(iface) && !Boolean.FALSE.equals(reachable.get(device));
+			if (usable) {
+				gateway = RouteManager.GetIFaceGateway(device);
+				usable = gateway != null && !gateway.isEmpty();
+			}
+
+			if (path.iface != null && (!usable || !path.iface.IPAddress.equals(iface.IPAddress) || !path.iface.NetworkMask.equals(iface.NetworkMask)
+			    || !path.gateway.equals(gateway))) {
+				// A path that failed to come down stays up and is retried next time
+				if (RouteManager.InterfaceDown(path.table, path.iface)) {
+					Count(device, "down");
+					path.iface = null;
+					path.gateway = "";
+					changes++;
+				}
+			}
+			if (path.iface == null && usable && RouteManager.InterfaceUp(path.table, iface, gateway)) {
+				Count(device, "up");
+				path.iface = Copy(iface);
+				path.gateway = gateway;
+				changes++;
+			}
+		}
+		return changes;
+	}
+
+	private static boolean HasAddress(NetworkInterface iface) {
+		return iface.IPAddress != null && !iface.IPAddress.isEmpty() && !iface.IPAddress.equals("0.0.0.0");
+	}
+
+	private static NetworkInterface Copy(NetworkInterface iface) {
+		NetworkInterface copy = new NetworkInterface(iface.Device);
+		copy.IPAddress = iface.IPAddress;
+		copy.NetworkMask = iface.NetworkMask;
+		copy.Broadcast = iface.Broadcast;
+		copy.Address = iface.Address;
+		return copy;
+	}
+
+	private static void Count(String device, String action) {
+		Metrics.GetCounter("mptcp_path_changes_total", "Paths brought up or down by the path selector", "device", device, "action", action).Increment();
+	}
+}
@@ -0,0 +1,420 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Plays an {@link ObservationRecorder} trace back through the path management
+ * logic on a virtual clock.
+ *
+ * <BR>
+ * The trace rebuilds the interfaces, gateways, probe results, temperature,
+ * frequency and frequency cap as they were seen live, and every <b>step</b> milliseconds of
+ * trace time the registered {@link Policy}s are evaluated. Nothing sleeps, so
+ * hours of trace replay in seconds. While a replay runs, {@link RouteManager}
+ * uses a backend that answers gateway and address lookups from the trace and
+ * captures the ip commands instead of running them; they are returned,
+ * timestamped, in the {@link Result}.
+ *
+ * <BR>
+ * The {@link RouteManager} backend only applies to the replaying thread, and
+ * one replay runs at a time. Replays are refused while a {@link StateJournal}
+ * or a {@link ManagerDaemon} is active, so replayed path changes never mix
+ * with the live metrics.
+ *
+ */
+public class ReplayEngine {
+	/**
+	 * Path management logic driven by the replay
+	 */
+	public interface Policy {
+		/**
+		 * Evaluates the policy against the replayed state
+		 *
+		 * @param engine
+		 *          The engine, for its current state
+		 * @param now
+		 *          Virtual time in milliseconds
+		 */
+		void Evaluate(ReplayEngine engine, long now);
+	}
+
+	/**
+	 * An ip command the policies would have issued
+	 */
+	public static class Command {
+		public final long Time; // Virtual time in milliseconds
+		public final String Args; // ip arguments
+
+		Command(long time, String args) {
+			Time = time;
+			Args = args;
+		}
+
+		public String toString() {
+			return Time + " ip " + Args;
+		}
+	}
+
+	/**
+	 * Outcome of a replay
+	 */
+	public static class Result {
+		public final List<Command> Commands;
+		public final long Records; // Trace records read
+		public final long Evaluations; // Policy evaluation rounds
+		public final long VirtualMillis; // Trace time covered
+		public final long WallNanos; // Time the replay took
+
+		Result(List<Command> commands, long records, long evaluations, long virtualMillis, long wallNanos) {
+			Commands = Collections.unmodifiableList(commands);
+			Records = records;
+			Evaluations = evaluations;
+			VirtualMillis = virtualMillis;
+			WallNanos = wallNanos;
+		}
+
+		/**
+		 * @return How many times faster than real time the replay ran
+		 */
+		public double GetSpeedup() {
+			return WallNanos == 0 ? 0 : VirtualMillis * 1e6 / WallNanos;
+		}
+
+		public String toString() {
+			return Records + " records, " + Evaluations + " evaluations, " + Commands.size() + " commands, " + VirtualMillis + " ms replayed in "
+			    + (WallNanos / 1000000) + " ms";
+		}
+	}
+
+	private static final Object LOCK = new Object();
+
+	private final long step;
+	private final List<Policy> policies = new ArrayList<Policy>();
+
+	// Replayed state
+	private final Map<String, NetworkInterface> interfaces = new LinkedHashMap<String, NetworkInterface>();
+	private final Map<String, String> gateways = new HashMap<String, String>();
+	private final Map<String, Boolean> probes = new HashMap<String, Boolean>();
+	private final Map<String, int[]> counters = new HashMap<String, int[]>();
+	private final List<String> strings = new ArrayList<String>();
+	private long temperature = -1, frequency = -1, frequencyCap = -1, time = 0;
+
+	/**
+	 * Creates a replay engine
+	 *
+	 * @param step
+	 *          Virtual milliseconds between policy evaluations
+	 */
+	public ReplayEngine(long step) {
+		if (step <= 0)
+			throw new IllegalArgumentException("step must be positive");
+		this.step = step;
+	}
+
+	/**
+	 * Adds a policy to evaluate, in order of addition
+	 *
+	 * @param policy
+	 *          The Policy
+	 * @return this
+	 */
+	public ReplayEngine AddPolicy(Policy policy) {
+		policies.add(policy);
+		return this;
+	}
+
+	/**
+	 * Replays a trace file
+	 *
+	 * @param path
+	 *          Trace file path
+	 * @return Replay Result
+	 * @throws IOException
+	 */
+	public Result Run(String path) throws IOException {
+		InputStream in = new FileInputStream(path);
+		try {
+			return Run(in);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Do Nothing
+			}
+		}
+	}
+
+	/**
+	 * Replays a trace
+	 *
+	 * @param stream
+	 *          Trace stream, not closed
+	 * @return Replay Result
+	 * @throws IOException
+	 *           If the trace is not valid
+	 * @throws IllegalStateException
+	 *           If a journal or a daemon is active
+	 */
+	public Result Run(InputStream stream) throws IOException {
+		if (StateJournal.GetActive() != null || ManagerDaemon.IsAnyRunning())
+			throw new IllegalStateException("Replay refused while live path management is active");
+		synchronized (LOCK) {
+			long wallStart = System.nanoTime();
+			Reset();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 16 * 1024));
+			if (in.readInt() != ObservationRecorder.MAGIC)
+				throw new IOException("Not an observation trace");
+			int version = in.readUnsignedByte();
+			if (version < 1 || version > ObservationRecorder.VERSION)
+				throw new IOException("Unsupported trace version " + version);
+			long start = in.readLong();
+			time = start;
+
+			final List<Command> commands = new ArrayList<Command>();
+			RouteManager.SetBackend(new RouteManager.Backend() {
+				public String CallIP(String args) {
+					commands.add(new Command(time, args));
+					return "";
+				}
+
+				public String GetIFaceGateway(String iface) {
+					String gateway = gateways.get(iface);
+					return gateway == null ? "" : gateway;
+				}
+
+				public String GetIFaceIP(String iface) {
+					NetworkInterface i = interfaces.get(iface);
+					return i == null ? "" : i.IPAddress;
+				}
+			});
+
+			long records = 0, evaluations = 0;
+			long next = start + step;
+			try {
+				while (true) {
+					int type = in.read();
+					if (type < 0)
+						break;
+					long recordTime = time + ObservationRecorder.ReadVarLong(in);
+					// The state at each evaluation is the one before this record
+					for (; next <= recordTime; next += step) {
+						time = next;
+						Evaluate();
+						evaluations++;
+					}
+					time = recordTime;
+					Apply(type, in);
+					records++;
+				}
+				// Last evaluation sees the final state
+				Evaluate();
+				evaluations++;
+			} catch (EOFException e) {
+				throw new IOException("Truncated trace after " + records + " records");
+			} finally {
+				RouteManager.SetBackend(null);
+			}
+			Metrics.GetCounter("mptcp_replay_records_total", "Trace records replayed").Add(records);
+			return new Result(commands, records, evaluations, time - start, System.nanoTime() - wallStart);
+		}
+	}
+
+	/**
+	 * @return Replayed interfaces, in order of appearance
+	 */
+	public NetworkInterface[] GetInterfaces() {
+		return interfaces.values().toArray(new NetworkInterface[interfaces.size()]);
+	}
+
+	/**
+	 * @param iface
+	 *          Network Interface
+	 * @return Replayed gateway, empty if unknown
+	 */
+	public String GetGateway(String iface) {
+		String gateway = gateways.get(iface);
+		return gateway == null ? "" : gateway;
+	}
+
+	/**
+	 * @param iface
+	 *          Network Interface
+	 * @return Last replayed probe result, true if the interface was never
+	 *         probed
+	 */
+	public boolean IsReachable(String iface) {
+		return !Boolean.FALSE.equals(probes.get(iface));
+	}
+
+	/**
+	 * @return Replayed temperature or -1
+	 */
+	public long GetTemperature() {
+		return temperature;
+	}
+
+	/**
+	 * @return Replayed average frequency or -1
+	 */
+	public long GetFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * @return Replayed frequency cap or -1
+	 */
+	public long GetFrequencyCap() {
+		return frequencyCap;
+	}
+
+	/**
+	 * @return Virtual time in milliseconds
+	 */
+	public long GetTime() {
+		return time;
+	}
+
+	/**
+	 * Drives an EnergyPolicy with the replayed interfaces and thermal state
+	 *
+	 * @param policy
+	 *          The EnergyPolicy
+	 * @return Replay Policy
+	 */
+	public static Policy Of(final EnergyPolicy policy) {
+		return new Policy() {
+			public void Evaluate(ReplayEngine engine, long now) {
+				policy.Evaluate(engine.GetInterfaces(), engine.GetTemperature(), engine.GetFrequencyCap(), now);
+			}
+		};
+	}
+
+	/**
+	 * Drives a PathSelector with the replayed interfaces and probe results
+	 *
+	 * @param selector
+	 *          The PathSelector
+	 * @return Replay Policy
+	 */
+	public static Policy Of(final PathSelector selector) {
+		return new Policy() {
+			public void Evaluate(ReplayEngine engine, long now) {
+				NetworkInterface[] ifaces = engine.GetInterfaces();
+				for (NetworkInterface iface : ifaces)
+					selector.SetReachable(iface.Device, engine.IsReachable(iface.Device));
+				selector.Evaluate(ifaces, now);
+			}
+		};
+	}
+
+	private void Evaluate() {
+		for (Policy policy : policies)
+			policy.Evaluate(this, time);
+	}
+
+	private void Reset() {
+		interfaces.clear();
+		gateways.clear();
+		probes.clear();
+		counters.clear();
+		strings.clear();
+		temperature = -1;
+		frequency = -1;
+		frequencyCap = -1;
+	}
+
+	private void Apply(int type, DataInputStream in) throws IOException {
+		switch (type) {
+			case ObservationRecorder.ADDRESS: {
+				NetworkInterface iface = Interface(ReadString(in));
+				iface.IPAddress = ReadString(in);
+				iface.NetworkMask = ReadString(in);
+				iface.Broadcast = ReadString(in);
+				iface.Address = ReadString(in);
+				break;
+			}
+			case ObservationRecorder.COUNTERS: {
+				String device = ReadString(in);
+				int[] c = counters.get(device);
+				if (c == null) {
+					c = new int[ObservationRecorder.NUM_COUNTERS];
+					counters.put(device, c);
+				}
+				for (int i = 0; i < c.length; i++)
+					c[i] += (int) ObservationRecorder.UnZigZag(ObservationRecorder.ReadVarLong(in));
+				NetworkInterface iface = Interface(device);
+				iface.RXBytes = c[ObservationRecorder.RX_BYTES];
+				iface.RXPackets = c[ObservationRecorder.RX_PACKETS];
+				iface.RXErrors = c[ObservationRecorder.RX_ERRORS];
+				iface.RXDrops = c[ObservationRecorder.RX_DROPS];
+				iface.TXBytes = c[ObservationRecorder.TX_BYTES];
+				iface.TXPackets = c[ObservationRecorder.TX_PACKETS];
+				iface.TXErrors = c[ObservationRecorder.TX_ERRORS];
+				iface.TXDrops = c[ObservationRecorder.TX_DROPS];
+				break;
+			}
+			case ObservationRecorder.GATEWAY: {
+				String device = ReadString(in);
+				gateways.put(device, ReadString(in));
+				break;
+			}
+			case ObservationRecorder.PROBE: {
+				ReadString(in); // Target address
+				String device = ReadString(in);
+				probes.put(device, in.readBoolean());
+				break;
+			}
+			case ObservationRecorder.REMOVED: {
+				String device = ReadString(in);
+				interfaces.remove(device);
+				counters.remove(device);
+				gateways.remove(device);
+				probes.remove(device);
+				break;
+			}
+			case ObservationRecorder.TEMPERATURE:
+				temperature = ObservationRecorder.UnZigZag(ObservationRecorder.ReadVarLong(in));
+				break;
+			case ObservationRecorder.FREQUENCY:
+				frequency = ObservationRecorder.UnZigZag(ObservationRecorder.ReadVarLong(in));
+				break;
+			case ObservationRecorder.FREQUENCY_CAP:
+				frequencyCap = ObservationRecorder.UnZigZag(ObservationRecorder.ReadVarLong(in));
+				break;
+			default:
+				throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	private NetworkInterface Interface(String device) {
+		NetworkInterface iface = interfaces.get(device);
+		if (iface == null) {
+			iface = new NetworkInterface(device);
+			interfaces.put(device, iface);
+		}
+		return iface;
+	}
+
+	private String ReadString(DataInputStream in) throws IOException {
+		long id = ObservationRecorder.ReadVarLong(in);
+		if (id == strings.size()) {
+			strings.add(in.readUTF());
+		} else if (id > strings.size()) {
+			throw new IOException("Bad string reference " + id);
+		}
+		return strings.get((int) id);
+	}
+}
@@ -0,0 +1,171 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Long lived super user shell.
+ *
+ * <BR>
+ * Starting <b>su</b> costs tens of milliseconds on most devices, so processes
+ * that run many privileged commands should keep one shell open. Register it
+ * with {@link Tools#SetRootShell(RootShell)} and every
+ * {@link Tools#ExecuteCMD_SU(String)} call goes through it.
+ *
+ * <BR>
+ * Each command is followed by a marker on stdout and stderr carrying its exit
+ * status, so its output can be split from the next one. The marker is found
+ * anywhere in a line, since output may lack a trailing newline. stderr is
+ * drained by its own thread so a command filling it never blocks.
+ *
+ * <BR>
+ * A shell that died stays dead (see {@link #IsAlive()});
+ * {@link Tools#ExecuteCMD_SU(String)} replaces it.
+ *
+ */
+public class RootShell {
+	private final Process su;
+	private final DataOutputStream stdin;
+	private final BufferedReader stdout;
+	private final BlockingQueue<String> errors = new LinkedBlockingQueue<String>();
+	private final String marker;
+	private volatile boolean alive = true;
+
+	/**
+	 * Starts a super user shell
+	 *
+	 * @throws IOException
+	 */
+	public RootShell() throws IOException {
+		su = Runtime.getRuntime().exec("su");
+		stdin = new DataOutputStream(su.getOutputStream());
+		stdout = new BufferedReader(new InputStreamReader(su.getInputStream()));
+		marker = "__MPTCPMANAGER_" + Long.toHexString(System.nanoTime()) + "__";
+		final BufferedReader stderr = new BufferedReader(new InputStreamReader(su.getErrorStream()));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					String line;
+					while ((line = stderr.readLine()) != null)
+						errors.add(line);
+				} catch (IOException e) {
+					// Shell closed
+				} finally {
+					// Wakes up a command waiting for its marker
+					errors.add(marker + " EOF");
+				}
+			}
+		}, "RootShell-Stderr");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return False once the shell died or was closed
+	 */
+	public boolean IsAlive() {
+		return alive;
+	}
+
+	/**
+	 * Executes a command and returns its output
+	 *
+	 * @param cmd
+	 *          The Command
+	 * @param span
+	 *          Span that receives the exit status and stderr
+	 * @return Output String
+	 * @throws IOException
+	 */
+	public String Execute(String cmd, Tracer.Span span) throws IOException {
+		return Execute(cmd, span, false);
+	}
+
+	/**
+	 * Executes a command and returns its output
+	 *
+	 * @param cmd
+	 *          The Command
+	 * @param span
+	 *          Span that receives the exit status and stderr
+	 * @param check
+	 *          Throw if the command exits with a non zero status
+	 * @return Output String
+	 * @throws IOException
+	 */
+	public synchronized String Execute(String cmd, Tracer.Span span, boolean check) throws IOException {
+		if (!alive)
+			throw new IOException("su shell died");
+		StringBuilder data = new StringBuilder();
+		StringBuilder errorData = new StringBuilder();
+		int status = -1;
+		try {
+			stdin.writeBytes(cmd + "\n");
+			stdin.writeBytes("echo " + marker + " $?\n");
+			stdin.writeBytes("echo " + marker + " >&2\n");
+			stdin.flush();
+
+			String line;
+			while ((line = stdout.readLine()) != null) {
+				int at = line.indexOf(marker);
+				if (at >= 0) {
+					data.append(line.substring(0, at));
+					status = Integer.parseInt(line.substring(at + marker.length()).trim());
+					break;
+				}
+				data.append(line + "\n");
+			}
+			if (line == null)
+				throw new IOException("su shell died");
+
+			while (true) {
+				line = errors.take();
+				int at = line.indexOf(marker);
+				if (at >= 0) {
+					errorData.append(line.substring(0, at));
+					if (line.endsWith(marker + " EOF"))
+						throw new IOException("su shell died");
+					break;
+				}
+				errorData.append(line + "\n");
+			}
+		} catch (IOException e) {
+			Kill();
+			throw e;
+		} catch (InterruptedException e) {
+			// The stderr marker may still come and would be taken by the next command
+			Kill();
+			throw new IOException("Interrupted", e);
+		} catch (NumberFormatException e) {
+			Kill();
+			throw new IOException("Garbled exit status", e);
+		}
+		span.SetResult(status, errorData.toString());
+		if (check && status != 0)
+			throw new IOException("Exit status " + status + ": " + errorData.toString().trim());
+		return data.toString();
+	}
+
+	private void Kill() {
+		alive = false;
+		su.destroy();
+	}
+
+	/**
+	 * Closes the shell
+	 */
+	public synchronized void Close() {
+		alive = false;
+		try {
+			stdin.writeBytes("exit\n");
+			stdin.flush();
+			su.waitFor();
+		} catch (Exception e) {
+			su.destroy();
+		}
+	}
+}
@@ -2,6 +2,9 @@ package com.tvs.mptcpmanager;
 
 import android.util.Log;
 
+import com.tvs.mptcptypes.NetworkInterface;
+import com.tvs.mptcptypes.PathProfile;
+
 /**
  * Linux Route Manager using shell IP commands
  * 
@@ -22,7 +25,7 @@ import android.util.Log;
  * 
  */
 public class RouteManager {
-	enum ROUTE_TABLES {
+	public enum ROUTE_TABLES {
 		ETHERNET(2), WIRELESS(3), MODEM(4);
 		
 		public int num;
@@ -37,12 +40,64 @@ public class RouteManager {
 		}
 	}
 	
-	public static void AddDefaultHop(String address, String iface) {
-		try {
-			CallIP("route add default scope global nexthop via " + address + " dev " + iface);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Where ip commands and interface lookups go. The default backend runs them
+	 * on the system; {@link ReplayEngine} installs one that captures commands
+	 * and answers lookups from a recorded trace.
+	 */
+	public interface Backend {
+		/**
+		 * Runs an ip command
+		 * 
+		 * @param args
+		 *          Arguments
+		 * @return Output
+		 * @throws Exception
+		 */
+		String CallIP(String args) throws Exception;
+		
+		/**
+		 * @param iface
+		 *          Network Interface
+		 * @return Gateway Address
+		 */
+		String GetIFaceGateway(String iface);
+		
+		/**
+		 * @param iface
+		 *          Network Interface
+		 * @return IP Address
+		 */
+		String GetIFaceIP(String iface);
+	}
+	
+	private static final ThreadLocal<Backend> backend = new ThreadLocal<Backend>();
+	
+	/**
+	 * Replaces the system backend for the calling thread only, so live route
+	 * operations on other threads still reach the system
+	 * 
+	 * @param b
+	 *          The Backend or null to use the system again
+	 */
+	public static void SetBackend(Backend b) {
+		if (b == null)
+			backend.remove();
+		else
+			backend.set(b);
+	}
+	
+	/**
+	 * Adds a default route through an address
+	 * 
+	 * @param address
+	 *          Gateway Address
+	 * @param iface
+	 *          Network Interface
+	 * @return True if ip succeeded
+	 */
+	public static boolean AddDefaultHop(String address, String iface) {
+		return RunIP("add_default_hop", "route add default scope global nexthop via " + address + " dev " + iface);
 	}
 	
 	/**
@@ -56,13 +111,10 @@ public class RouteManager {
 	 *          Network Address
 	 * @param Subnet
 	 *          Sub Network Address
+	 * @return True if ip succeeded
 	 */
-	public static void AddNetworkToTable(String Table, String Interface, String NetworkAddress, String Subnet) {
-		try {
-			CallIP("route add table " + Table + " to " + NetworkAddress + "/" + Subnet + " dev " + Interface + " scope link");
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public static boolean AddNetworkToTable(String Table, String Interface, String NetworkAddress, String Subnet) {
+		return RunIP("add_network", "route add table " + Table + " to " + NetworkAddress + "/" + Subnet + " dev " + Interface + " scope link");
 	}
 	
 	/**
@@ -74,13 +126,10 @@ public class RouteManager {
 	 *          Network Interface
 	 * @param Gateway
 	 *          Network Gateway
+	 * @return True if ip succeeded
 	 */
-	public static void AddNetworkGatewayToTable(String Table, String Interface, String Gateway) {
-		try {
-			CallIP("route add table " + Table + " default via " + Gateway + " dev " + Interface);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public static boolean AddNetworkGatewayToTable(String Table, String Interface, String Gateway) {
+		return RunIP("add_gateway", "route add table " + Table + " default via " + Gateway + " dev " + Interface);
 	}
 	
 	/**
@@ -90,13 +139,10 @@ public class RouteManager {
 	 *          The Table
 	 * @param IP
 	 *          The IP Address
+	 * @return True if ip succeeded
 	 */
-	public static void AddRule(String Table, String IP) {
-		try {
-			CallIP("rule add from " + IP + " table " + Table);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public static boolean AddRule(String Table, String IP) {
+		return RunIP("add_rule", "rule add from " + IP + " table " + Table);
 	}
 	
 	/**
@@ -106,13 +152,10 @@ public class RouteManager {
 	 *          The Table
 	 * @param IP
 	 *          The IP Address
+	 * @return True if ip succeeded
 	 */
-	public static void DelRule(String Table, String IP) {
-		try {
-			CallIP("rule del from " + IP + " table " + Table);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public static boolean DelRule(String Table, String IP) {
+		return RunIP("del_rule", "rule del from " + IP + " table " + Table);
 	}
 	
 	/**
@@ -121,30 +164,16 @@ public class RouteManager {
 	 * @param Table
 	 */
 	public static void DelRule(String Table) {
-		try {
-			// 4 times because it only removes one.
-			CallIP("rule del lookup " + Table);
-			CallIP("rule del lookup " + Table);
-			CallIP("rule del lookup " + Table);
-			CallIP("rule del lookup " + Table);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		// 4 times because it only removes one.
+		DeleteAll("del_rule", "rule del lookup " + Table, 4);
 	}
 	
 	/**
 	 * Clear the Gateway Routes
 	 */
 	public static void ClearRoutes() {
-		try {
-			// 4 times because it only removes one.
-			CallIP("route del 0/0");
-			CallIP("route del 0/0");
-			CallIP("route del 0/0");
-			CallIP("route del 0/0");
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		// 4 times because it only removes one.
+		DeleteAll("clear_routes", "route del 0/0", 4);
 	}
 	
 	/**
@@ -154,13 +183,23 @@ public class RouteManager {
 	 *          The Gateway Address
 	 * @param dev
 	 *          The Device
+	 * @return True if ip succeeded
 	 */
-	public static void RemoveGateway(String gateway, String dev) {
-		try {
-			CallIP("route del default via " + gateway + " dev " + dev);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public static boolean RemoveGateway(String gateway, String dev) {
+		return RunIP("remove_gateway", "route del default via " + gateway + " dev " + dev);
+	}
+	
+	/**
+	 * Sets the MPTCP mode of an interface (out-of-tree MPTCP kernels)
+	 * 
+	 * @param iface
+	 *          Network Interface
+	 * @param mode
+	 *          on, off or backup
+	 * @return True if ip succeeded
+	 */
+	public static boolean SetMultipath(String iface, String mode) {
+		return RunIP("set_multipath", "link set dev " + iface + " multipath " + mode);
 	}
 	
 	/**
@@ -169,9 +208,17 @@ public class RouteManager {
 	 * @param iface
 	 *          Network Address
 	 * @return Gateway Address
+	 * @see AddressResolver
 	 */
 	public static String GetIFaceGateway(String iface) {
-		return Tools.GetProp("dhcp." + iface + ".gateway");
+		Backend b = backend.get();
+		if (b != null)
+			return b.GetIFaceGateway(iface);
+		String gateway = AddressResolver.GetDefault().GetGateway(iface);
+		ObservationRecorder recorder = ObservationRecorder.GetActive();
+		if (recorder != null)
+			recorder.RecordGateway(iface, gateway);
+		return gateway;
 	}
 	
 	/**
@@ -180,9 +227,13 @@ public class RouteManager {
 	 * @param iface
 	 *          Network Address
 	 * @return IP Address
+	 * @see AddressResolver
 	 */
 	public static String GetIFaceIP(String iface) {
-		return Tools.GetProp("dhcp." + iface + ".ipaddress");
+		Backend b = backend.get();
+		if (b != null)
+			return b.GetIFaceIP(iface);
+		return AddressResolver.GetDefault().GetIP(iface);
 	}
 	
 	/**
@@ -190,15 +241,159 @@ public class RouteManager {
 	 * 
 	 * @param table
 	 *          The routing table name or number
+	 * @return True if ip succeeded
+	 */
+	public static boolean CleanRouteTable(String table) {
+		return RunIP("clean_table", "route flush table " + table);
+	}
+	
+	/**
+	 * Brings up an interface path: adds its network and gateway to the route
+	 * table and a rule for its source address. If a step fails the table is
+	 * flushed again, so a later retry does not trip over half of the path.
+	 * 
+	 * @param Table
+	 *          Network Routing Table (ethernet, wireless or modem)
+	 * @param iface
+	 *          Updated NetworkInterface
+	 * @param Gateway
+	 *          Network Gateway
+	 * @return True if every step succeeded
 	 */
-	public static void CleanRouteTable(String table) {
+	public static boolean InterfaceUp(String Table, NetworkInterface iface, String Gateway) {
+		Tracer.Span span = Tracer.Begin("interface_up", Table + " " + iface.Device + " " + iface.IPAddress + " via " + Gateway);
 		try {
-			CallIP("route flush table " + table);
+			String network = Tools.GetNetworkAddress(iface.IPAddress, iface.NetworkMask);
+			if (AddNetworkToTable(Table, iface.Device, network, String.valueOf(Tools.GetMaskID(iface.NetworkMask)))
+					&& AddNetworkGatewayToTable(Table, iface.Device, Gateway) && AddRule(Table, iface.IPAddress))
+				return true;
+			CleanRouteTable(Table);
+			return false;
+		} finally {
+			span.End();
+		}
+	}
+	
+	/**
+	 * Tears down an interface path: removes the rule for its source address and
+	 * flushes its route table.
+	 * 
+	 * @param Table
+	 *          Network Routing Table (ethernet, wireless or modem)
+	 * @param iface
+	 *          NetworkInterface
+	 * @return True if every step succeeded
+	 */
+	public static boolean InterfaceDown(String Table, NetworkInterface iface) {
+		Tracer.Span span = Tracer.Begin("path_teardown", Table + " " + iface.Device + " " + iface.IPAddress);
+		try {
+			boolean rule = DelRule(Table, iface.IPAddress);
+			return CleanRouteTable(Table) && rule;
+		} finally {
+			span.End();
+		}
+	}
+	
+	/**
+	 * Applies a PathProfile: brings each path up or down and sets its MPTCP
+	 * mode.
+	 * 
+	 * @param profile
+	 *          The PathProfile
+	 * @param ifaces
+	 *          Updated NetworkInterface Array
+	 */
+	public static void ApplyProfile(PathProfile profile, NetworkInterface[] ifaces) {
+		Tracer.Span span = Tracer.Begin("profile_apply", profile.Name);
+		try {
+			for (PathProfile.Entry entry : profile.GetEntries()) {
+				NetworkInterface iface = null;
+				for (NetworkInterface i : ifaces)
+					if (i.Device.equals(entry.Device))
+						iface = i;
+				if (iface == null) {
+					Log.w("RouteManager::ApplyProfile", "No interface " + entry.Device + " for profile " + profile.Name);
+					continue;
+				}
+				if (entry.PathMode == PathProfile.Mode.DOWN) {
+					SetMultipath(entry.Device, "off");
+					InterfaceDown(entry.Table, iface);
+				} else {
+					String gateway = entry.Gateway.isEmpty() ? GetIFaceGateway(entry.Device) : entry.Gateway;
+					InterfaceUp(entry.Table, iface, gateway);
+					SetMultipath(entry.Device, entry.PathMode == PathProfile.Mode.BACKUP ? "backup" : "on");
+				}
+			}
+		} finally {
+			span.End();
+		}
+	}
+	
+	/**
+	 * Runs one or more ip commands as a route operation, recording its duration
+	 * and failures in {@link Metrics} and a {@link Tracer} span. Stops at the
+	 * first failing command, one that could not run or exited with a non zero
+	 * status.
+	 * 
+	 * @param op
+	 *          Operation name used as metric label
+	 * @param args
+	 *          Arguments of each ip command
+	 * @return True if every command succeeded
+	 */
+	private static boolean RunIP(String op, String... args) {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin(op, null);
+		try {
+			for (String arg : args) {
+				CallIP(arg);
+				Journal(arg);
+			}
+			return true;
+		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_route_errors_total", "Route operations that failed", "op", op).Increment();
+			Log.e("RouteManager::" + op, "ip command failed", e);
+			span.Fail(e);
+			return false;
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_route_duration_seconds", "Time spent on route operations", "op", op), start);
+		}
+	}
+	
+	/**
+	 * Repeats an ip delete until it fails, as when nothing is left to delete.
+	 * That failure is expected and not counted as an error.
+	 * 
+	 * @param op
+	 *          Operation name used as metric label
+	 * @param arg
+	 *          Arguments of the ip command
+	 * @param max
+	 *          Maximum number of deletes
+	 */
+	private static void DeleteAll(String op, String arg, int max) {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin(op, null);
+		try {
+			for (int i = 0; i < max; i++) {
+				CallIP(arg);
+				Journal(arg);
+			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			// Nothing left to delete
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_route_duration_seconds", "Time spent on route operations", "op", op), start);
 		}
 	}
 	
+	private static void Journal(String arg) {
+		StateJournal journal = StateJournal.GetActive();
+		if (journal != null && backend.get() == null)
+			journal.RecordIP(arg);
+	}
+	
 	/**
 	 * Calls ip command
 	 * 
@@ -206,10 +401,14 @@ public class RouteManager {
 	 *          Arguments
 	 * @return String Output
 	 * @throws Exception
+	 *           If ip could not run or exited with a non zero status
 	 */
 	public static String CallIP(String args) throws Exception {
+		Backend b = backend.get();
+		if (b != null)
+			return b.CallIP(args);
 		Log.d("RouteManager::CallIP", "ip " + args);
-		return Tools.ExecuteCMD_SU("ip " + args);
+		return Tools.ExecuteCMD_SU("ip " + args, true);
 	}
 	
 	/**
@@ -219,12 +418,20 @@ public class RouteManager {
 	 *          Arguments
 	 * @return String Output
 	 * @throws Exception
+	 *           If ip could not run or exited with a non zero status
 	 */
 	public static String CallIP(String[] args) throws Exception {
+		Backend b = backend.get();
+		if (b != null) {
+			StringBuilder sb = new StringBuilder();
+			for (String arg : args)
+				sb.append(sb.length() == 0 ? "" : " ").append(arg);
+			return b.CallIP(sb.toString());
+		}
 		String[] tmp = new String[args.length + 1];
 		tmp[0] = "ip";
 		for (int i = 0; i < args.length; i++)
 			tmp[i + 1] = args[i];
-		return Tools.ExecuteCMD(tmp);
+		return Tools.ExecuteCMD(tmp, true);
 	}
 }
@@ -0,0 +1,65 @@
+package com.tvs.mptcpmanager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Collapses concurrent calls for the same key into one execution. The first
+ * caller runs the task, callers arriving while it runs wait for and share its
+ * result.
+ *
+ * @param <K>
+ *          Key Type
+ * @param <V>
+ *          Result Type
+ */
+public class SingleFlight<K, V> {
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Runs the task, or joins the one already running for this key
+	 *
+	 * @param key
+	 *          Flight Key
+	 * @param task
+	 *          The Task
+	 * @return Task Result
+	 * @throws Exception
+	 *           Thrown by the task
+	 */
+	public V Do(K key, Callable<V> task) throws Exception {
+		FutureTask<V> flight = new FutureTask<V>(task);
+		FutureTask<V> running = flights.putIfAbsent(key, flight);
+		if (running == null) {
+			try {
+				flight.run();
+			} finally {
+				flights.remove(key, flight);
+			}
+		} else {
+			flight = running;
+		}
+		try {
+			return flight.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if a task is running for a key
+	 *
+	 * @param key
+	 *          Flight Key
+	 * @return True if running
+	 */
+	public boolean InFlight(K key) {
+		return flights.containsKey(key);
+	}
+}
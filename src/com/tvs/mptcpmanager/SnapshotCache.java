@@ -0,0 +1,252 @@
+package com.tvs.mptcpmanager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import android.util.Log;
+
+import com.tvs.mptcptypes.InterfaceSnapshot;
+import com.tvs.mptcptypes.NetworkInterface;
+
+/**
+ * Cached, single flight view of the interfaces, addresses and gateways.
+ *
+ * <BR>
+ * Every data kind has its own maximum age (see {@link #SetMaxAge}). Readers
+ * that find stale data collapse into one fetch through {@link SingleFlight}
+ * and all get the same immutable result, so the number of processes spawned
+ * does not grow with the number of readers. Interface counters are refreshed
+ * on their own, while addresses are only fetched again when their age expires
+ * or after {@link #Invalidate(String)}.
+ *
+ * <BR>
+ * Most callers should use the shared instance from {@link #GetDefault()}.
+ *
+ */
+public class SnapshotCache {
+	public enum Kind {
+		COUNTERS, // Interface traffic counters
+		ADDRESSES, // Interface IP, mask, broadcast and MAC
+		GATEWAYS // Interface gateways
+	}
+
+	/**
+	 * A cached value and the time it was fetched
+	 */
+	private static class Entry<V> {
+		final V value;
+		final long time;
+
+		Entry(V value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	private static final SnapshotCache DEFAULT = new SnapshotCache();
+	private static final String INTERFACES = "interfaces";
+
+	private final long[] maxAge = { 1000, 30000, 30000 };
+	private final SingleFlight<String, Object> flights = new SingleFlight<String, Object>();
+	private final ConcurrentMap<String, Entry<String>> gateways = new ConcurrentHashMap<String, Entry<String>>();
+	private final ConcurrentMap<String, Entry<String>> ips = new ConcurrentHashMap<String, Entry<String>>();
+	private volatile Entry<InterfaceSnapshot[]> interfaces = null;
+	private volatile long addressesTime = -1;
+
+	/**
+	 * @return Shared SnapshotCache
+	 */
+	public static SnapshotCache GetDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Sets how long a data kind is served from cache
+	 *
+	 * @param kind
+	 *          Data Kind
+	 * @param millis
+	 *          Maximum age in milliseconds, 0 to always fetch
+	 */
+	public void SetMaxAge(Kind kind, long millis) {
+		maxAge[kind.ordinal()] = millis;
+	}
+
+	/**
+	 * Gets the interface snapshots
+	 *
+	 * @return Interface Snapshots, empty if they could not be fetched
+	 */
+	public InterfaceSnapshot[] GetInterfaces() {
+		Entry<InterfaceSnapshot[]> e = interfaces;
+		if (Fresh(e, Kind.COUNTERS))
+			return Hit(Kind.COUNTERS, e.value);
+		try {
+			return (InterfaceSnapshot[]) Fetch(Kind.COUNTERS, INTERFACES, new Callable<Object>() {
+				public Object call() {
+					return RefreshInterfaces();
+				}
+			});
+		} catch (Exception ex) {
+			Log.w("SnapshotCache", "Failed to refresh interfaces", ex);
+			return e == null ? new InterfaceSnapshot[0] : e.value;
+		}
+	}
+
+	/**
+	 * Gets an interface gateway
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @return Gateway Address
+	 * @see RouteManager#GetIFaceGateway(String)
+	 */
+	public String GetGateway(final String iface) {
+		Entry<String> e = gateways.get(iface);
+		if (Fresh(e, Kind.GATEWAYS))
+			return Hit(Kind.GATEWAYS, e.value);
+		try {
+			return (String) Fetch(Kind.GATEWAYS, "gw:" + iface, new Callable<Object>() {
+				public Object call() {
+					Entry<String> last = gateways.get(iface);
+					if (Fresh(last, Kind.GATEWAYS))
+						return last.value;
+					String gateway = RouteManager.GetIFaceGateway(iface);
+					gateways.put(iface, new Entry<String>(gateway, System.currentTimeMillis()));
+					return gateway;
+				}
+			});
+		} catch (Exception ex) {
+			return e == null ? "" : e.value;
+		}
+	}
+
+	/**
+	 * Gets an interface IP Address
+	 *
+	 * @param iface
+	 *          Network Interface
+	 * @return IP Address
+	 * @see RouteManager#GetIFaceIP(String)
+	 */
+	public String GetIP(final String iface) {
+		Entry<String> e = ips.get(iface);
+		if (Fresh(e, Kind.ADDRESSES))
+			return Hit(Kind.ADDRESSES, e.value);
+		try {
+			return (String) Fetch(Kind.ADDRESSES, "ip:" + iface, new Callable<Object>() {
+				public Object call() {
+					Entry<String> last = ips.get(iface);
+					if (Fresh(last, Kind.ADDRESSES))
+						return last.value;
+					String ip = RouteManager.GetIFaceIP(iface);
+					ips.put(iface, new Entry<String>(ip, System.currentTimeMillis()));
+					return ip;
+				}
+			});
+		} catch (Exception ex) {
+			return e == null ? "" : e.value;
+		}
+	}
+
+	/**
+	 * Drops every cached value of a data kind
+	 *
+	 * @param kind
+	 *          Data Kind
+	 */
+	public void Invalidate(Kind kind) {
+		if (kind != Kind.COUNTERS)
+			AddressResolver.GetDefault().Invalidate();
+		switch (kind) {
+			case COUNTERS:
+				interfaces = null;
+				break;
+			case ADDRESSES:
+				addressesTime = -1;
+				ips.clear();
+				break;
+			case GATEWAYS:
+				gateways.clear();
+				break;
+		}
+	}
+
+	/**
+	 * Drops the cached addresses and gateway of an interface, usually after an
+	 * interface change event
+	 *
+	 * @param iface
+	 *          Network Interface
+	 */
+	public void Invalidate(String iface) {
+		AddressResolver.GetDefault().Invalidate();
+		gateways.remove(iface);
+		ips.remove(iface);
+		addressesTime = -1;
+	}
+
+	/**
+	 * Drops everything
+	 */
+	public void InvalidateAll() {
+		for (Kind kind : Kind.values())
+			Invalidate(kind);
+	}
+
+	private InterfaceSnapshot[] RefreshInterfaces() {
+		long start = System.nanoTime();
+		long now = System.currentTimeMillis();
+		Entry<InterfaceSnapshot[]> last = interfaces;
+		if (Fresh(last, Kind.COUNTERS))
+			return last.value;
+
+		boolean addressesFresh = last != null && addressesTime >= 0 && now - addressesTime < maxAge[Kind.ADDRESSES.ordinal()];
+		Map<String, InterfaceSnapshot> before = new HashMap<String, InterfaceSnapshot>();
+		if (last != null)
+			for (InterfaceSnapshot s : last.value)
+				before.put(s.Device, s);
+
+		String[] devs = Tools.GetNetworkInterfacesList();
+		if (devs == null)
+			devs = new String[0];
+		InterfaceSnapshot[] current = new InterfaceSnapshot[devs.length];
+		for (int i = 0; i < devs.length; i++) {
+			InterfaceSnapshot old = before.get(devs[i]);
+			NetworkInterface iface = new NetworkInterface(devs[i]);
+			if (addressesFresh && old != null) {
+				iface.IPAddress = old.IPAddress;
+				iface.NetworkMask = old.NetworkMask;
+				iface.Broadcast = old.Broadcast;
+				iface.Address = old.Address;
+				Tools.UpdateNetworkCounters(iface);
+			} else {
+				iface.Update();
+			}
+			current[i] = InterfaceSnapshot.Of(iface, GetGateway(devs[i]), old, now);
+		}
+		if (!addressesFresh)
+			addressesTime = now;
+		interfaces = new Entry<InterfaceSnapshot[]>(current, now);
+		Metrics.ObserveSince(Metrics.GetHistogram("mptcp_snapshot_refresh_duration_seconds", "Time spent refreshing the interfaces snapshot"), start);
+		return current;
+	}
+
+	private Object Fetch(Kind kind, String key, Callable<Object> loader) throws Exception {
+		String result = flights.InFlight(key) ? "shared" : "miss";
+		Metrics.GetCounter("mptcp_cache_requests_total", "Snapshot cache requests", "kind", kind.name().toLowerCase(), "result", result).Increment();
+		return flights.Do(key, loader);
+	}
+
+	private <V> V Hit(Kind kind, V value) {
+		Metrics.GetCounter("mptcp_cache_requests_total", "Snapshot cache requests", "kind", kind.name().toLowerCase(), "result", "hit").Increment();
+		return value;
+	}
+
+	private boolean Fresh(Entry<?> e, Kind kind) {
+		return e != null && System.currentTimeMillis() - e.time < maxAge[kind.ordinal()];
+	}
+}
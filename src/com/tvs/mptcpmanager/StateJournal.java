@@ -0,0 +1,693 @@
+package com.tvs.mptcpmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.tvs.mptcpmanager.RouteManager.ROUTE_TABLES;
+import com.tvs.mptcptypes.InterfaceSnapshot;
+
+/**
+ * Crash safe journal of the route, rule and sysctl changes applied by the
+ * manager and of the last known interface addressing, used to restart without
+ * rebuilding the routes.
+ *
+ * <BR>
+ * The journal is a memory mapped file of checksummed records: <i> <BR>
+ * int MAGIC, int VERSION, then records of: int length, int CRC32, payload </i>
+ * <BR>
+ * A record is written before its length, so a crash can only leave a torn
+ * last record, which fails its checksum and is dropped on load. The mapping is
+ * shared, so records survive the process dying without any sync; see
+ * {@link #Sync()} for power loss. When the file fills up it is compacted into
+ * a new file holding only the live state, which then replaces it.
+ *
+ * <BR>
+ * On startup call {@link #Verify()}: it checks every journaled route, rule,
+ * multipath mode and sysctl against the kernel with a single <b>ip route show
+ * table all</b> / <b>ip rule show</b> / <b>ip -o link show</b> dump. If it passes the configuration is adopted as is,
+ * otherwise the caller cleans up (see {@link #Undo()}) and rebuilds.
+ *
+ */
+public class StateJournal {
+	public static final int MAGIC = 0x4D50544A; // "MPTJ"
+	public static final int VERSION = 1;
+
+	// Record types
+	private static final int IP = 1; // ip arguments
+	private static final int SYSCTL = 2; // var, val
+	private static final int SNAPSHOT = 3; // device, ip, mask, broadcast, mac, gateway
+	private static final int REMOVED = 4; // device
+
+	private static final int HEADER = 8;
+	private static final int RECORD_HEADER = 8;
+	private static final String DUMP_MARK = "--mptcp-journal--";
+
+	private static volatile StateJournal active = null;
+
+	private final File file;
+	private int capacity;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private int position;
+
+	// Live state, in order of application
+	private final Map<String, String> routes = new LinkedHashMap<String, String>();
+	private final Map<String, String> rules = new LinkedHashMap<String, String>();
+	private final Map<String, String> links = new LinkedHashMap<String, String>();
+	private final Map<String, String> sysctls = new LinkedHashMap<String, String>();
+	private final Map<String, InterfaceSnapshot> interfaces = new LinkedHashMap<String, InterfaceSnapshot>();
+
+	/**
+	 * Opens a journal, creating it if needed, and loads its state
+	 *
+	 * @param path
+	 *          Journal file path
+	 * @param capacity
+	 *          Initial file size in bytes
+	 * @throws IOException
+	 */
+	public StateJournal(String path, int capacity) throws IOException {
+		this.file = new File(path);
+		this.capacity = Math.max(capacity, 4096);
+		Load();
+	}
+
+	/**
+	 * Sets the journal that receives the applied changes
+	 *
+	 * @param journal
+	 *          The journal or null to stop journaling
+	 */
+	public static void SetActive(StateJournal journal) {
+		active = journal;
+	}
+
+	/**
+	 * @return Active journal or null
+	 */
+	public static StateJournal GetActive() {
+		return active;
+	}
+
+	/**
+	 * Journals an ip command that was applied
+	 *
+	 * @param args
+	 *          ip arguments
+	 */
+	public synchronized void RecordIP(String args) {
+		if (ApplyIP(args))
+			Append(IP, args);
+	}
+
+	/**
+	 * Journals a sysctl that was written
+	 *
+	 * @param var
+	 *          Variable
+	 * @param val
+	 *          Value
+	 */
+	public synchronized void RecordSysctl(String var, String val) {
+		if (val.equals(sysctls.get(var)))
+			return;
+		sysctls.put(var, val);
+		Append(SYSCTL, var, val);
+	}
+
+	/**
+	 * Journals the addressing of an interface, if it changed
+	 *
+	 * @param s
+	 *          Interface Snapshot
+	 */
+	public synchronized void RecordSnapshot(InterfaceSnapshot s) {
+		InterfaceSnapshot last = interfaces.get(s.Device);
+		if (last != null && !s.AddressChanged(last))
+			return;
+		interfaces.put(s.Device, s);
+		Append(SNAPSHOT, s.Device, s.IPAddress, s.NetworkMask, s.Broadcast, s.Address, s.Gateway);
+	}
+
+	/**
+	 * Journals that an interface went away
+	 *
+	 * @param device
+	 *          Network Interface
+	 */
+	public synchronized void RecordRemoved(String device) {
+		if (interfaces.remove(device) != null)
+			Append(REMOVED, device);
+	}
+
+	/**
+	 * @return Last known interfaces, without counters
+	 */
+	public synchronized InterfaceSnapshot[] GetInterfaces() {
+		return interfaces.values().toArray(new InterfaceSnapshot[interfaces.size()]);
+	}
+
+	/**
+	 * @return ip arguments of the journaled routes
+	 */
+	public synchronized List<String> GetRoutes() {
+		return new ArrayList<String>(routes.values());
+	}
+
+	/**
+	 * @return ip arguments of the journaled rules
+	 */
+	public synchronized List<String> GetRules() {
+		return new ArrayList<String>(rules.values());
+	}
+
+	/**
+	 * Checks if a source rule was journaled
+	 *
+	 * @param table
+	 *          Table name or number
+	 * @param ip
+	 *          Source IP Address
+	 * @return True if journaled
+	 */
+	public synchronized boolean HasRule(String table, String ip) {
+		return rules.containsKey(ip + " " + TableId(table));
+	}
+
+	/**
+	 * @return True if nothing was journaled
+	 */
+	public synchronized boolean IsEmpty() {
+		return routes.isEmpty() && rules.isEmpty() && links.isEmpty() && sysctls.isEmpty();
+	}
+
+	/**
+	 * Checks the journaled state against the kernel. Routes and rules come from
+	 * one root command, sysctls are read from /proc/sys.
+	 *
+	 * @return True if every journaled route, rule, multipath mode and sysctl is
+	 *         in place
+	 */
+	public boolean Verify() {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("journal_verify", null);
+		boolean ok = false;
+		try {
+			String dump = Tools.ExecuteCMD_SU("ip route show table all; echo " + DUMP_MARK + "; ip rule show; echo " + DUMP_MARK + "; ip -o link show");
+			int mark = dump.indexOf(DUMP_MARK);
+			int linkMark = mark < 0 ? -1 : dump.indexOf(DUMP_MARK, mark + DUMP_MARK.length());
+			if (linkMark < 0)
+				throw new IOException("Incomplete kernel dump");
+			ok = Verify(dump.substring(0, mark), dump.substring(mark + DUMP_MARK.length(), linkMark), dump.substring(linkMark + DUMP_MARK.length()));
+		} catch (Exception e) {
+			Log.w("StateJournal", "Could not verify the journal", e);
+			span.Fail(e);
+		} finally {
+			span.End();
+			Metrics.GetCounter("mptcp_journal_verifications_total", "Journal verifications on startup", "result", ok ? "adopted" : "rebuilt").Increment();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_journal_verify_duration_seconds", "Time spent verifying the journal"), start);
+		}
+		return ok;
+	}
+
+	/**
+	 * Checks the journaled state against kernel dumps
+	 *
+	 * @param routeDump
+	 *          Output of ip route show table all
+	 * @param ruleDump
+	 *          Output of ip rule show
+	 * @return True if every journaled route, rule and sysctl is in place
+	 */
+	public boolean Verify(String routeDump, String ruleDump) {
+		return Verify(routeDump, ruleDump, null);
+	}
+
+	/**
+	 * Checks the journaled state against kernel dumps
+	 *
+	 * @param routeDump
+	 *          Output of ip route show table all
+	 * @param ruleDump
+	 *          Output of ip rule show
+	 * @param linkDump
+	 *          Output of ip -o link show, null to skip the multipath modes
+	 * @return True if every journaled route, rule, multipath mode and sysctl is
+	 *         in place
+	 */
+	public synchronized boolean Verify(String routeDump, String ruleDump, String linkDump) {
+		Set<String> kernelRoutes = new HashSet<String>();
+		for (String line : routeDump.split("\n"))
+			if (!line.trim().isEmpty() && !Character.isWhitespace(line.charAt(0)))
+				kernelRoutes.add(RouteKey(line));
+		Set<String> kernelRules = new HashSet<String>();
+		for (String line : ruleDump.split("\n")) {
+			int colon = line.indexOf(':');
+			if (colon >= 0)
+				kernelRules.add(RuleKey(line.substring(colon + 1)));
+		}
+		for (String key : routes.keySet()) {
+			if (!kernelRoutes.contains(key)) {
+				Log.w("StateJournal", "Missing route " + routes.get(key));
+				return false;
+			}
+		}
+		for (String key : rules.keySet()) {
+			if (!kernelRules.contains(key)) {
+				Log.w("StateJournal", "Missing rule " + rules.get(key));
+				return false;
+			}
+		}
+		if (linkDump != null) {
+			Map<String, String> kernelLinks = ParseLinkModes(linkDump);
+			for (Map.Entry<String, String> e : links.entrySet()) {
+				if (!e.getValue().equals(kernelLinks.get(e.getKey()))) {
+					Log.w("StateJournal", "Multipath mode changed " + e.getKey());
+					return false;
+				}
+			}
+		}
+		for (Map.Entry<String, String> e : sysctls.entrySet()) {
+			if (!MPTCPProbe.ReadSysctl(e.getKey()).equals(e.getValue())) {
+				Log.w("StateJournal", "Sysctl changed " + e.getKey());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the multipath mode of every link from the flags of an <b>ip -o link
+	 * show</b> dump, example: <i> <BR>
+	 * 3: wlan0: &lt;BROADCAST,MULTICAST,NOMULTIPATH,UP&gt; mtu 1500 ... </i>
+	 *
+	 * @return Device to on, off or backup
+	 */
+	static Map<String, String> ParseLinkModes(String linkDump) {
+		Map<String, String> modes = new HashMap<String, String>();
+		for (String line : linkDump.split("\n")) {
+			String[] t = line.trim().split("\\s+");
+			if (t.length < 3 || !t[1].endsWith(":") || !t[2].startsWith("<"))
+				continue;
+			String device = t[1].substring(0, t[1].length() - 1);
+			int at = device.indexOf('@');
+			if (at > 0)
+				device = device.substring(0, at);
+			String flags = "," + t[2].substring(1, t[2].length() - 1) + ",";
+			if (flags.contains(",NOMULTIPATH,"))
+				modes.put(device, "off");
+			else if (flags.contains(",MPBACKUP,") || flags.contains(",MULTIPATH-BACKUP,"))
+				modes.put(device, "backup");
+			else
+				modes.put(device, "on");
+		}
+		return modes;
+	}
+
+	/**
+	 * Removes the journaled rules and flushes the journaled tables, then clears
+	 * the journal. Used when {@link #Verify()} fails, before rebuilding.
+	 */
+	public void Undo() {
+		List<String> tables = new ArrayList<String>();
+		List<String[]> sources = new ArrayList<String[]>();
+		synchronized (this) {
+			for (String key : rules.keySet())
+				sources.add(key.split(" "));
+			for (String key : routes.keySet()) {
+				String table = key.substring(0, key.indexOf(' '));
+				if (!tables.contains(table) && !table.equals("254"))
+					tables.add(table);
+			}
+		}
+		for (String[] rule : sources)
+			RouteManager.DelRule(rule[1], rule[0]);
+		for (String table : tables)
+			RouteManager.CleanRouteTable(table);
+		Clear();
+	}
+
+	/**
+	 * Drops every record
+	 */
+	public synchronized void Clear() {
+		routes.clear();
+		rules.clear();
+		links.clear();
+		sysctls.clear();
+		interfaces.clear();
+		try {
+			Compact();
+		} catch (IOException e) {
+			Log.e("StateJournal", "Failed to clear the journal", e);
+		}
+	}
+
+	/**
+	 * Forces the records to storage, surviving power loss and not only
+	 * process crashes
+	 */
+	public synchronized void Sync() {
+		if (map != null)
+			map.force();
+	}
+
+	/**
+	 * Syncs and closes the journal. If this is the active journal it is
+	 * deactivated.
+	 */
+	public synchronized void Close() {
+		if (active == this)
+			active = null;
+		Sync();
+		Unmap();
+	}
+
+	private void Load() throws IOException {
+		Map();
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			// New or foreign file
+			position = HEADER;
+			Compact();
+			return;
+		}
+		int records = 0, pos = HEADER;
+		CRC32 crc = new CRC32();
+		while (pos + RECORD_HEADER <= capacity) {
+			int length = map.getInt(pos);
+			if (length <= 0 || pos + RECORD_HEADER + length > capacity)
+				break;
+			byte[] payload = new byte[length];
+			map.position(pos + RECORD_HEADER);
+			map.get(payload);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != map.getInt(pos + 4)) {
+				Log.w("StateJournal", "Dropping torn record at " + pos);
+				break;
+			}
+			Replay(payload);
+			records++;
+			pos += RECORD_HEADER + length;
+		}
+		position = pos;
+		if (position + RECORD_HEADER <= capacity)
+			map.putInt(position, 0);
+		Metrics.GetGauge("mptcp_journal_records", "Records loaded from the journal").Set(records);
+	}
+
+	private void Replay(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		switch (in.readByte()) {
+			case IP:
+				ApplyIP(in.readUTF());
+				break;
+			case SYSCTL:
+				sysctls.put(in.readUTF(), in.readUTF());
+				break;
+			case SNAPSHOT: {
+				String device = in.readUTF(), ip = in.readUTF(), mask = in.readUTF(), broadcast = in.readUTF(), mac = in.readUTF(), gateway = in.readUTF();
+				interfaces.put(device, new InterfaceSnapshot(device, mac, ip, mask, broadcast, gateway, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0));
+				break;
+			}
+			case REMOVED:
+				interfaces.remove(in.readUTF());
+				break;
+		}
+	}
+
+	/**
+	 * Updates the live state with an ip command
+	 *
+	 * @return True if the command changes journaled state
+	 */
+	private boolean ApplyIP(String args) {
+		String[] t = args.trim().split("\\s+");
+		if (t.length < 2)
+			return false;
+		String rest = Join(t, 2);
+		if (t[0].equals("route")) {
+			if (t[1].equals("add")) {
+				routes.put(RouteKey(rest), args);
+			} else if (t[1].equals("del")) {
+				// ip removes the first match, "del 0/0" the first main default
+				String key = RouteKey(rest);
+				if (routes.remove(key) == null) {
+					for (Iterator<String> it = routes.keySet().iterator(); it.hasNext();)
+						if (RouteMatches(it.next(), key)) {
+							it.remove();
+							break;
+						}
+				}
+			} else if (t[1].equals("flush") && t.length > 3 && t[2].equals("table")) {
+				String table = TableId(t[3]) + " ";
+				for (Iterator<String> it = routes.keySet().iterator(); it.hasNext();)
+					if (it.next().startsWith(table))
+						it.remove();
+			} else {
+				return false;
+			}
+			return true;
+		}
+		if (t[0].equals("rule")) {
+			String key = RuleKey(rest);
+			if (t[1].equals("add")) {
+				rules.put(key, args);
+			} else if (t[1].equals("del")) {
+				if (key.startsWith("all ")) {
+					// del lookup TABLE removes the first rule of the table
+					for (Iterator<String> it = rules.keySet().iterator(); it.hasNext();)
+						if (it.next().endsWith(key.substring(3))) {
+							it.remove();
+							break;
+						}
+				} else {
+					rules.remove(key);
+				}
+			} else {
+				return false;
+			}
+			return true;
+		}
+		if (t[0].equals("link") && t.length >= 6 && t[1].equals("set") && t[4].equals("multipath")) {
+			links.put(t[3], t[5]);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Canonical route key: <i>table destination via device</i>, for both
+	 * <b>ip route add</b> arguments and <b>ip route show</b> lines. A key with
+	 * no via and device matches any route to the destination, see
+	 * {@link #RouteMatches(String, String)}.
+	 */
+	static String RouteKey(String route) {
+		String[] t = route.trim().split("\\s+");
+		String table = "254", dest = null, via = "", dev = "";
+		for (int i = 0; i < t.length; i++) {
+			String w = t[i];
+			boolean hasNext = i + 1 < t.length;
+			if (w.equals("table") && hasNext)
+				table = TableId(t[++i]);
+			else if (w.equals("via") && hasNext)
+				via = t[++i];
+			else if (w.equals("dev") && hasNext)
+				dev = t[++i];
+			else if (w.equals("to") && hasNext)
+				dest = t[++i];
+			else if (w.equals("scope") || w.equals("proto") || w.equals("metric") || w.equals("src") || w.equals("linkdown") || w.equals("mtu"))
+				i += w.equals("linkdown") ? 0 : 1;
+			else if (dest == null && !IsRouteType(w) && !w.equals("nexthop"))
+				dest = w;
+		}
+		if (dest == null || dest.equals("0/0") || dest.equals("0.0.0.0/0"))
+			dest = "default";
+		if (dest.endsWith("/32"))
+			dest = dest.substring(0, dest.length() - 3);
+		return table + " " + dest + " " + via + " " + dev;
+	}
+
+	/**
+	 * Checks a route key against a pattern key whose empty via and device
+	 * match anything
+	 */
+	static boolean RouteMatches(String key, String pattern) {
+		String[] k = key.split(" ", -1), p = pattern.split(" ", -1);
+		return k[0].equals(p[0]) && k[1].equals(p[1]) && (p[2].isEmpty() || k[2].equals(p[2])) && (p[3].isEmpty() || k[3].equals(p[3]));
+	}
+
+	/**
+	 * Canonical rule key: <i>source table</i>
+	 */
+	static String RuleKey(String rule) {
+		String[] t = rule.trim().split("\\s+");
+		String from = "all", table = "";
+		for (int i = 0; i + 1 < t.length; i++) {
+			if (t[i].equals("from"))
+				from = t[++i];
+			else if (t[i].equals("lookup") || t[i].equals("table"))
+				table = TableId(t[++i]);
+		}
+		return from + " " + table;
+	}
+
+	/**
+	 * Maps a table name to its number, as ip prints numbers for tables with no
+	 * name and names for those in rt_tables
+	 */
+	static String TableId(String table) {
+		if (table.equals("main"))
+			return "254";
+		if (table.equals("local"))
+			return "255";
+		if (table.equals("default"))
+			return "253";
+		for (ROUTE_TABLES t : ROUTE_TABLES.values())
+			if (t.name().equalsIgnoreCase(table))
+				return String.valueOf(t.num);
+		return table;
+	}
+
+	private static boolean IsRouteType(String w) {
+		return w.equals("unicast") || w.equals("local") || w.equals("broadcast") || w.equals("multicast") || w.equals("unreachable")
+		    || w.equals("prohibit") || w.equals("blackhole") || w.equals("throw") || w.equals("anycast") || w.equals("nat");
+	}
+
+	private static String Join(String[] t, int from) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < t.length; i++)
+			sb.append(i == from ? "" : " ").append(t[i]);
+		return sb.toString();
+	}
+
+	private void Append(int type, String... fields) {
+		try {
+			byte[] payload = Encode(type, fields);
+			if (position + RECORD_HEADER + payload.length + RECORD_HEADER > capacity) {
+				// The live state is already updated, so compaction includes this record
+				Compact();
+				return;
+			}
+			Write(payload);
+			Metrics.GetCounter("mptcp_journal_appends_total", "Records appended to the journal").Increment();
+		} catch (IOException e) {
+			Log.e("StateJournal", "Failed to journal a change", e);
+		}
+	}
+
+	/**
+	 * Writes a record at the end: terminator, payload and checksum first, then
+	 * the length that makes it visible
+	 */
+	private void Write(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		int end = position + RECORD_HEADER + payload.length;
+		if (end + RECORD_HEADER <= capacity)
+			map.putInt(end, 0);
+		map.position(position + RECORD_HEADER);
+		map.put(payload);
+		map.putInt(position + 4, (int) crc.getValue());
+		map.putInt(position, payload.length);
+		position = end;
+	}
+
+	/**
+	 * Rewrites the live state into a new file and swaps it in, growing it if
+	 * the state does not fit
+	 */
+	private void Compact() throws IOException {
+		long start = System.nanoTime();
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (String args : routes.values())
+			records.add(Encode(IP, args));
+		for (String args : rules.values())
+			records.add(Encode(IP, args));
+		for (Map.Entry<String, String> e : links.entrySet())
+			records.add(Encode(IP, "link set dev " + e.getKey() + " multipath " + e.getValue()));
+		for (Map.Entry<String, String> e : sysctls.entrySet())
+			records.add(Encode(SYSCTL, e.getKey(), e.getValue()));
+		for (InterfaceSnapshot s : interfaces.values())
+			records.add(Encode(SNAPSHOT, s.Device, s.IPAddress, s.NetworkMask, s.Broadcast, s.Address, s.Gateway));
+		int size = HEADER + RECORD_HEADER;
+		for (byte[] r : records)
+			size += RECORD_HEADER + r.length;
+		while (size * 2 > capacity)
+			capacity *= 2;
+
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			out.setLength(capacity);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			CRC32 crc = new CRC32();
+			for (byte[] r : records) {
+				crc.reset();
+				crc.update(r, 0, r.length);
+				out.writeInt(r.length);
+				out.writeInt((int) crc.getValue());
+				out.write(r);
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Unmap();
+		if (!tmp.renameTo(file))
+			throw new IOException("Could not replace " + file);
+		Map();
+		position = size - RECORD_HEADER;
+		Metrics.GetCounter("mptcp_journal_compactions_total", "Journal compactions").Increment();
+		Metrics.ObserveSince(Metrics.GetHistogram("mptcp_journal_compaction_duration_seconds", "Time spent compacting the journal"), start);
+	}
+
+	private static byte[] Encode(int type, String... fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		for (String f : fields)
+			out.writeUTF(f == null ? "" : f);
+		return bytes.toByteArray();
+	}
+
+	private void Map() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		if (raf.length() > capacity)
+			capacity = (int) raf.length();
+		if (raf.length() < capacity)
+			raf.setLength(capacity);
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private void Unmap() {
+		map = null;
+		try {
+			if (raf != null)
+				raf.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+		raf = null;
+	}
+}
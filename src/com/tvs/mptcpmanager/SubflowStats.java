@@ -0,0 +1,255 @@
+package com.tvs.mptcpmanager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.tvs.mptcpmanager.RouteManager.ROUTE_TABLES;
+import com.tvs.mptcptypes.Histogram;
+
+/**
+ * Per path TCP performance from the kernel tcp_info of every socket.
+ *
+ * <BR>
+ * One <b>ss -tinH</b> dump (a single sock_diag request inside iproute2), run
+ * through the root shell, returns tcp_info for all TCP sockets, MPTCP subflows included. Every socket
+ * is grouped by its source address into the path of the interface holding
+ * it, named after its {@link ROUTE_TABLES} entry when one is set with
+ * {@link #SetPath(String, ROUTE_TABLES)}, and accumulated into per path
+ * {@link Histogram}s and sums, so thousands of subflows cost one process and
+ * keep no per socket state. Loopback sockets are skipped.
+ *
+ * <BR>
+ * Each collection is published in {@link Metrics} as <b>mptcp_path_*</b>.
+ *
+ */
+public class SubflowStats {
+	/**
+	 * Aggregated statistics of the sockets of one path
+	 */
+	public static class PathStats {
+		public final String Name;
+		public final Histogram RTT = new Histogram(); // Smoothed RTT in microseconds
+		public final Histogram RTTVar = new Histogram(); // RTT variance in microseconds
+		public final Histogram Cwnd = new Histogram(); // Congestion window in segments
+		public final Histogram DeliveryRate = new Histogram(); // Bits per second
+		public final Histogram PacingRate = new Histogram(); // Bits per second
+		public long Sockets, Retransmits, Lost, BytesSent, BytesRetrans;
+
+		PathStats(String name) {
+			Name = name;
+		}
+
+		/**
+		 * @return Retransmitted bytes over sent bytes
+		 */
+		public double GetRetransmitRatio() {
+			return BytesSent == 0 ? 0 : (double) BytesRetrans / BytesSent;
+		}
+
+		public String toString() {
+			return Name + ": " + Sockets + " sockets, srtt p50 " + RTT.GetQuantile(0.5) + "us p99 " + RTT.GetQuantile(0.99) + "us, cwnd p50 "
+			    + Cwnd.GetQuantile(0.5) + ", retrans " + Retransmits + ", lost " + Lost;
+		}
+	}
+
+	private static final String OTHER = "other";
+
+	private final Map<String, ROUTE_TABLES> tables = new HashMap<String, ROUTE_TABLES>();
+	private final Map<String, PathStats> paths = new LinkedHashMap<String, PathStats>();
+	private final Map<String, PathStats> bySource = new HashMap<String, PathStats>();
+
+	/**
+	 * Names the path of an interface after its routing table
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param table
+	 *          Routing Table
+	 */
+	public synchronized void SetPath(String device, ROUTE_TABLES table) {
+		tables.put(device, table);
+	}
+
+	/**
+	 * Dumps every TCP socket and aggregates them per path
+	 *
+	 * @return Statistics by path name, only paths with sockets
+	 * @throws IOException
+	 */
+	public synchronized Map<String, PathStats> Collect() throws IOException {
+		long start = System.nanoTime();
+		Set<String> before = new HashSet<String>(paths.keySet());
+		Tracer.Span span = Tracer.Begin("subflow_stats", null);
+		try {
+			// sock_diag dumps of other apps sockets need root
+			Parse(new BufferedReader(new StringReader(Tools.ExecuteCMD_SU("ss -tinH", true))));
+		} catch (IOException e) {
+			span.Fail(e);
+			throw e;
+		} catch (Exception e) {
+			span.Fail(e);
+			throw new IOException("ss failed", e);
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_subflow_stats_duration_seconds", "Time spent collecting per path socket statistics"), start);
+		}
+		before.removeAll(paths.keySet());
+		for (String name : before)
+			Metrics.GetGauge("mptcp_path_sockets", "TCP sockets and subflows per path", "path", name).Set(0);
+		Publish();
+		return new LinkedHashMap<String, PathStats>(paths);
+	}
+
+	/**
+	 * Parses <b>ss -tin</b> output: a line per socket followed by an indented
+	 * tcp_info line. Paths start over on every parse, so only the ones with
+	 * sockets are kept and the stats a caller got before are not changed.
+	 *
+	 * @param reader
+	 *          ss output
+	 * @throws IOException
+	 */
+	synchronized void Parse(BufferedReader reader) throws IOException {
+		paths.clear();
+		bySource.clear();
+		PathStats current = null;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty())
+				continue;
+			if (!Character.isWhitespace(line.charAt(0))) {
+				current = line.startsWith("State") || line.startsWith("Recv-Q") ? null : SocketPath(line);
+				if (current != null)
+					current.Sockets++;
+			} else if (current != null) {
+				ParseInfo(line, current);
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Finds the path of a socket line: [State] Recv-Q Send-Q Local:Port
+	 * Peer:Port
+	 */
+	private PathStats SocketPath(String line) {
+		String[] t = line.trim().split("\\s+");
+		if (t.length < 4)
+			return null;
+		String local = t[t.length - 2];
+		int port = local.lastIndexOf(':');
+		if (port > 0)
+			local = local.substring(0, port);
+		PathStats s = bySource.get(local);
+		if (s != null || bySource.containsKey(local))
+			return s;
+
+		String ip = local, device = null;
+		int percent = ip.indexOf('%');
+		if (percent >= 0) {
+			// Bound to a device: 10.0.0.5%wlan0
+			device = ip.substring(percent + 1);
+			ip = ip.substring(0, percent);
+		}
+		if (ip.startsWith("[") && ip.endsWith("]"))
+			ip = ip.substring(1, ip.length() - 1);
+		if (ip.startsWith("::ffff:"))
+			ip = ip.substring(7);
+		if (device == null) {
+			AddressResolver.Entry e = AddressResolver.GetDefault().FindByAddress(ip);
+			device = e == null ? null : e.Device;
+		}
+		if ("lo".equals(device) || ip.startsWith("127.") || ip.equals("::1")) {
+			bySource.put(local, null);
+			return null;
+		}
+		ROUTE_TABLES table = device == null ? null : tables.get(device);
+		String name = table != null ? table.name().toLowerCase() : device != null ? device : OTHER;
+		s = paths.get(name);
+		if (s == null) {
+			s = new PathStats(name);
+			paths.put(name, s);
+		}
+		bySource.put(local, s);
+		return s;
+	}
+
+	/**
+	 * Accumulates a tcp_info line, example: <i> <BR>
+	 * cubic wscale:7,7 rto:204 rtt:1.5/0.75 mss:1448 cwnd:10 bytes_sent:5000
+	 * bytes_retrans:100 retrans:0/2 lost:1 delivery_rate 12.3Mbps pacing_rate
+	 * 20Mbps </i>
+	 */
+	private static void ParseInfo(String line, PathStats s) {
+		String[] t = line.trim().split("\\s+");
+		for (int i = 0; i < t.length; i++) {
+			String w = t[i];
+			try {
+				if (w.startsWith("rtt:")) {
+					int slash = w.indexOf('/');
+					s.RTT.Record((long) (Double.parseDouble(w.substring(4, slash < 0 ? w.length() : slash)) * 1000));
+					if (slash > 0)
+						s.RTTVar.Record((long) (Double.parseDouble(w.substring(slash + 1)) * 1000));
+				} else if (w.startsWith("cwnd:")) {
+					s.Cwnd.Record(Long.parseLong(w.substring(5)));
+				} else if (w.startsWith("retrans:")) {
+					s.Retransmits += Long.parseLong(w.substring(w.indexOf('/') + 1));
+				} else if (w.startsWith("lost:")) {
+					s.Lost += Long.parseLong(w.substring(5));
+				} else if (w.startsWith("bytes_sent:")) {
+					s.BytesSent += Long.parseLong(w.substring(11));
+				} else if (w.startsWith("bytes_retrans:")) {
+					s.BytesRetrans += Long.parseLong(w.substring(14));
+				} else if (w.equals("delivery_rate") && i + 1 < t.length) {
+					s.DeliveryRate.Record(ParseRate(t[++i]));
+				} else if (w.equals("pacing_rate") && i + 1 < t.length) {
+					s.PacingRate.Record(ParseRate(t[++i]));
+				}
+			} catch (NumberFormatException e) {
+				// Field format from another ss version, skip it
+			}
+		}
+	}
+
+	/**
+	 * Parses an ss rate, example: 12.3Mbps
+	 *
+	 * @return Bits per second
+	 */
+	static long ParseRate(String rate) {
+		double multiplier = 1;
+		String number = rate.endsWith("bps") ? rate.substring(0, rate.length() - 3) : rate;
+		char unit = number.isEmpty() ? ' ' : number.charAt(number.length() - 1);
+		if (unit == 'K' || unit == 'k')
+			multiplier = 1e3;
+		else if (unit == 'M')
+			multiplier = 1e6;
+		else if (unit == 'G')
+			multiplier = 1e9;
+		if (multiplier != 1)
+			number = number.substring(0, number.length() - 1);
+		return (long) (Double.parseDouble(number) * multiplier);
+	}
+
+	private void Publish() {
+		for (PathStats s : paths.values()) {
+			Metrics.GetGauge("mptcp_path_sockets", "TCP sockets and subflows per path", "path", s.Name).Set(s.Sockets);
+			Metrics.GetGauge("mptcp_path_retransmit_ratio", "Retransmitted over sent bytes per path", "path", s.Name).Set(s.GetRetransmitRatio());
+			Metrics.GetGauge("mptcp_path_lost_packets", "Packets currently considered lost per path", "path", s.Name).Set(s.Lost);
+			for (String q : new String[] { "0.5", "0.9", "0.99" }) {
+				double quantile = Double.parseDouble(q);
+				Metrics.GetGauge("mptcp_path_srtt_seconds", "Smoothed RTT of the sockets per path", "path", s.Name, "quantile", q).Set(s.RTT.GetQuantile(quantile) / 1e6);
+				Metrics.GetGauge("mptcp_path_delivery_rate_bps", "Delivery rate of the sockets per path", "path", s.Name, "quantile", q).Set(
+				    s.DeliveryRate.GetQuantile(quantile));
+			}
+			Metrics.GetGauge("mptcp_path_rttvar_seconds", "Median RTT variance of the sockets per path", "path", s.Name).Set(s.RTTVar.GetQuantile(0.5) / 1e6);
+			Metrics.GetGauge("mptcp_path_cwnd", "Median congestion window per path", "path", s.Name).Set(s.Cwnd.GetQuantile(0.5));
+		}
+	}
+}
@@ -20,6 +20,42 @@ import com.tvs.mptcptypes.NetworkInterface;
  */
 public class Tools {
 	
+	private static volatile RootShell rootShell = null;
+	
+	/**
+	 * Sets a long lived super user shell used by
+	 * {@link #ExecuteCMD_SU(String)} instead of starting su for every command.
+	 * 
+	 * @param shell
+	 *          The RootShell or null to start su for every command
+	 */
+	public static void SetRootShell(RootShell shell) {
+		rootShell = shell;
+	}
+	
+	/**
+	 * @return The current RootShell, which may have replaced a dead one, or null
+	 */
+	public static RootShell GetRootShell() {
+		return rootShell;
+	}
+	
+	/**
+	 * Replaces a dead RootShell with a new one, or with per command su if none
+	 * can be started
+	 */
+	private static synchronized RootShell ReplaceRootShell(RootShell dead) {
+		if (rootShell != dead)
+			return rootShell;
+		Metrics.GetCounter("mptcp_root_shell_restarts_total", "Root shells started again after dying").Increment();
+		try {
+			rootShell = new RootShell();
+		} catch (IOException e) {
+			rootShell = null;
+		}
+		return rootShell;
+	}
+	
 	/**
 	 * Writes a variable in sysctl
 	 * 
@@ -30,6 +66,7 @@ public class Tools {
 	 * @return true if ok, false if not
 	 */
 	public static boolean WriteSysctl(String var, String val) {
+		long start = System.nanoTime();
 		try {
 			String ret = Tools.ExecuteCMD("sysctl -w " + var + "=" + val);
 			
@@ -37,10 +74,17 @@ public class Tools {
 			 * sysctl -w should return the same data. Example: $ sysctl -w
 			 * net.ipv4.ip_forward=1 net.ipv4.ip_forward = 1
 			 */
-			return ret.contentEquals(var + " = " + val);
+			boolean ok = ret.trim().contentEquals(var + " = " + val);
+			StateJournal journal = StateJournal.GetActive();
+			if (ok && journal != null)
+				journal.RecordSysctl(var, val);
+			return ok;
 		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_sysctl_errors_total", "Failed sysctl accesses", "op", "write").Increment();
 			e.printStackTrace();
 			return false;
+		} finally {
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_sysctl_duration_seconds", "Time spent on sysctl accesses", "op", "write"), start);
 		}
 	}
 	
@@ -52,6 +96,7 @@ public class Tools {
 	 * @return Variable Value
 	 */
 	public static String ReadSysctl(String var) {
+		long start = System.nanoTime();
 		try {
 			String ret = Tools.ExecuteCMD("sysctl " + var);
 			/**
@@ -60,8 +105,11 @@ public class Tools {
 			 */
 			return (ret.split("=", 1).length > 1) ? ret.split("=", 1)[1].trim() : ret.trim();
 		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_sysctl_errors_total", "Failed sysctl accesses", "op", "read").Increment();
 			e.printStackTrace();
 			return "";
+		} finally {
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_sysctl_duration_seconds", "Time spent on sysctl accesses", "op", "read"), start);
 		}
 	}
 	
@@ -70,14 +118,10 @@ public class Tools {
 	 * Example: <B>Stable release v0.89.2</B>
 	 * 
 	 * @return MPTCP Version
+	 * @see MPTCPProbe
 	 */
-	public String GetMPTCPVersion() {
-		try {
-			String version = ExecuteCMD("cat /var/log/dmesg | grep MPTCP");
-			return version.length() > 22 ? version.substring(22) : "No MPTCP";
-		} catch (Exception e) {
-			return "No MPTCP";
-		}
+	public static String GetMPTCPVersion() {
+		return MPTCPProbe.GetCapabilities().Version;
 	}
 	
 	/**
@@ -85,13 +129,10 @@ public class Tools {
 	 * Example: <B>v0.89.2</B>
 	 * 
 	 * @return MPTCP Version
+	 * @see MPTCPProbe
 	 */
-	public String GetShortMPTCPVersion() {
-		String version = GetMPTCPVersion();
-		if (version.length() > 14)
-			return version.substring(15);
-		else
-			return version;
+	public static String GetShortMPTCPVersion() {
+		return MPTCPProbe.GetCapabilities().ShortVersion;
 	}
 	
 	/**
@@ -138,34 +179,54 @@ public class Tools {
 			iface.Broadcast = GetBroadcast(dev);
 			iface.NetworkMask = GetNetworkMask(dev);
 			iface.Address = GetMAC(dev);
-			
-			// | Receive | Transmit
-			// |bytes packets errs drop fifo frame compressed multicast|bytes packets
-			// errs drop fifo colls carrier compressed
-			
-			int[] netdev = GetProcNetDev(dev);
-			if (netdev != null && netdev.length >= 16) {
-				iface.TXBytes = netdev[0];
-				iface.TXPackets = netdev[1];
-				iface.TXErrors = netdev[2];
-				iface.TXDrops = netdev[3];
-				iface.TXFifo = netdev[4];
-				iface.TXFrame = netdev[5];
-				iface.TXCompressed = netdev[6];
-				iface.TXMulticast = netdev[7];
-				
-				iface.RXBytes = netdev[8];
-				iface.RXPackets = netdev[9];
-				iface.RXErrors = netdev[10];
-				iface.RXDrops = netdev[11];
-				iface.RXFifo = netdev[12];
-				iface.RXColls = netdev[13];
-				iface.RXCarrier = netdev[14];
-				iface.RXCompressed = netdev[15];
-			}
+			UpdateNetworkCounters(iface);
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordAddress(iface);
 		} else {
 			iface.Blank();
 			iface.Device = dev;
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordRemoved(dev);
+		}
+	}
+	
+	/**
+	 * Updates only the traffic counters of a Network Interface, leaving its
+	 * addresses untouched.
+	 * 
+	 * @param iface
+	 *          The NetworkInterface Instance to be Updated
+	 */
+	public static void UpdateNetworkCounters(NetworkInterface iface) {
+		// | Receive | Transmit
+		// |bytes packets errs drop fifo frame compressed multicast|bytes packets
+		// errs drop fifo colls carrier compressed
+		
+		int[] netdev = GetProcNetDev(iface.Device);
+		if (netdev != null && netdev.length >= 16) {
+			iface.TXBytes = netdev[0];
+			iface.TXPackets = netdev[1];
+			iface.TXErrors = netdev[2];
+			iface.TXDrops = netdev[3];
+			iface.TXFifo = netdev[4];
+			iface.TXFrame = netdev[5];
+			iface.TXCompressed = netdev[6];
+			iface.TXMulticast = netdev[7];
+			
+			iface.RXBytes = netdev[8];
+			iface.RXPackets = netdev[9];
+			iface.RXErrors = netdev[10];
+			iface.RXDrops = netdev[11];
+			iface.RXFifo = netdev[12];
+			iface.RXColls = netdev[13];
+			iface.RXCarrier = netdev[14];
+			iface.RXCompressed = netdev[15];
+			Metrics.ObserveInterface(iface);
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordCounters(iface);
 		}
 	}
 	
@@ -174,36 +235,97 @@ public class Tools {
 	 * 
 	 * @param core
 	 *          CoreID
-	 * @return Frequency in Hz
+	 * @return Frequency in kHz
 	 */
 	public static int GetFrequency(int core) {
+		String base = "/sys/devices/system/cpu/cpu" + core + "/cpufreq/";
 		try {
-			String output = ExecuteCMD("cat /sys/devices/system/cpu/cpu" + core + "/cpufreq/cpuinfo_cur_freq");
-			return Integer.parseInt(output);
+			return Integer.parseInt(ReadFile(base + "cpuinfo_cur_freq").trim());
 		} catch (Exception e) {
-			return -1;
+			// cpuinfo_cur_freq is root only on most kernels
+			try {
+				return Integer.parseInt(ReadFile(base + "scaling_cur_freq").trim());
+			} catch (Exception ex) {
+				return -1;
+			}
 		}
 	}
 	
 	/**
-	 * Returns Processor Core Average Clock
+	 * Returns Processor Core Average Clock of the online cores
 	 * 
 	 * <br>
 	 * <b>(Core0F + Core1F ... CoreNF) / NumCores</b>
 	 * 
-	 * @return Average Clock
+	 * @return Average Clock in kHz
+	 * @see CpuSampler
 	 */
 	public static int GetFrequency() {
 		try {
-			String output = ExecuteCMD("cat /sys/devices/system/cpu/present");
-			String[] c = output.split("-"); // This will return [ FirstCore, LastCore
-			                                // ]
-			int firstcore = Integer.parseInt(c[0]), lastcore = Integer.parseInt(c[1]), numcores = lastcore - firstcore + 1, frequency = 0;
-			for (int i = firstcore; i <= lastcore; i++) {
-				frequency += GetFrequency(i);
+			int[] cores = CpuSampler.ParseCpuList(ReadFile("/sys/devices/system/cpu/present"));
+			long frequency = 0;
+			int numcores = 0;
+			for (int core : cores) {
+				int f = GetFrequency(core);
+				if (f > 0) {
+					frequency += f;
+					numcores++;
+				}
 			}
-			frequency /= numcores;
-			return frequency;
+			int average = numcores == 0 ? -1 : (int) (frequency / numcores);
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordFrequency(average);
+			return average;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns how far the clock of a Processor Core is currently allowed to go,
+	 * its scaling_max_freq, against the highest clock the hardware supports.
+	 * Thermal throttling lowers it; an idle core that is merely clocked down
+	 * does not.
+	 * 
+	 * @param core
+	 *          CoreID
+	 * @return Frequency cap in percent of the hardware maximum or -1
+	 */
+	public static int GetFrequencyCap(int core) {
+		String base = "/sys/devices/system/cpu/cpu" + core + "/cpufreq/";
+		try {
+			long cap = Long.parseLong(ReadFile(base + "scaling_max_freq").trim());
+			long max = Long.parseLong(ReadFile(base + "cpuinfo_max_freq").trim());
+			return max <= 0 ? -1 : (int) (cap * 100 / max);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the average Frequency Cap of the online cores
+	 * 
+	 * @return Frequency cap in percent of the hardware maximum or -1
+	 * @see #GetFrequencyCap(int)
+	 */
+	public static int GetFrequencyCap() {
+		try {
+			int[] cores = CpuSampler.ParseCpuList(ReadFile("/sys/devices/system/cpu/present"));
+			long total = 0;
+			int numcores = 0;
+			for (int core : cores) {
+				int cap = GetFrequencyCap(core);
+				if (cap >= 0) {
+					total += cap;
+					numcores++;
+				}
+			}
+			int average = numcores == 0 ? -1 : (int) (total / numcores);
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordFrequencyCap(average);
+			return average;
 		} catch (Exception e) {
 			return -1;
 		}
@@ -213,14 +335,23 @@ public class Tools {
 	 * Returns the System Temperature
 	 * 
 	 * @return System Temperature
+	 * @see CpuSampler
 	 */
 	public static int GetTemperature() {
+		int temperature;
 		try {
-			String output = ExecuteCMD("cat /sys/devices/platform/tmu/temperature");
-			return Integer.parseInt(output);
+			temperature = Integer.parseInt(ReadFile("/sys/devices/platform/tmu/temperature").trim());
 		} catch (Exception e) {
-			return -1;
+			try {
+				temperature = Integer.parseInt(ReadFile("/sys/class/thermal/thermal_zone0/temp").trim());
+			} catch (Exception ex) {
+				return -1;
+			}
 		}
+		ObservationRecorder recorder = ObservationRecorder.GetActive();
+		if (recorder != null)
+			recorder.RecordTemperature(temperature);
+		return temperature;
 	}
 	
 	/**
@@ -349,8 +480,24 @@ public class Tools {
 	 * @throws IOException
 	 */
 	public static String ExecuteCMD(String[] cmd) throws Exception {
+		return ExecuteCMD(cmd, false);
+	}
+	
+	/**
+	 * Executes an Shell Command and returns the output
+	 * 
+	 * @param cmd
+	 *          The Command
+	 * @param check
+	 *          Throw if the command exits with a non zero status
+	 * @return Output String
+	 * @throws IOException
+	 */
+	public static String ExecuteCMD(String[] cmd, boolean check) throws Exception {
 		StringBuilder data = new StringBuilder();
 		BufferedReader buffered_reader = null;
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("exec", Tracer.IsEnabled() ? Join(cmd) : null);
 		try {
 			String[] fullcmd = new String[2 + cmd.length];
 			fullcmd[0] = "/bin/sh";
@@ -358,6 +505,7 @@ public class Tools {
 			for (int i = 0; i < cmd.length; i++)
 				fullcmd[i + 2] = cmd[i];
 			Process p = Runtime.getRuntime().exec(cmd);
+			StreamDrain stderr = new StreamDrain(p.getErrorStream());
 			InputStream istream = p.getInputStream();
 			InputStreamReader istream_reader = new InputStreamReader(istream);
 			buffered_reader = new BufferedReader(istream_reader);
@@ -365,10 +513,14 @@ public class Tools {
 			while ((line = buffered_reader.readLine()) != null) {
 				data.append(line + "\n");
 			}
-			p.waitFor();
+			Check(check, p.waitFor(), stderr.Get(), span);
 		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_command_errors_total", "Commands that failed to run", "kind", "exec").Increment();
+			span.Fail(e);
 			throw (e);
 		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_command_duration_seconds", "Time spent running commands", "kind", "exec"), start);
 			try {
 				if (buffered_reader != null)
 					buffered_reader.close();
@@ -390,9 +542,12 @@ public class Tools {
 	public static String ExecuteCMD(String cmd) throws Exception {
 		StringBuilder data = new StringBuilder();
 		BufferedReader buffered_reader = null;
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("sh", cmd);
 		try {
 			// Runtime.getRuntime().exec("su");
 			Process p = Runtime.getRuntime().exec("/bin/sh -c " + cmd);
+			StreamDrain stderr = new StreamDrain(p.getErrorStream());
 			InputStream istream = p.getInputStream();
 			InputStreamReader istream_reader = new InputStreamReader(istream);
 			buffered_reader = new BufferedReader(istream_reader);
@@ -400,10 +555,14 @@ public class Tools {
 			while ((line = buffered_reader.readLine()) != null) {
 				data.append(line + "\n");
 			}
-			p.waitFor();
+			span.SetResult(p.waitFor(), stderr.Get());
 		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_command_errors_total", "Commands that failed to run", "kind", "sh").Increment();
+			span.Fail(e);
 			throw (e);
 		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_command_duration_seconds", "Time spent running commands", "kind", "sh"), start);
 			try {
 				if (buffered_reader != null)
 					buffered_reader.close();
@@ -423,10 +582,39 @@ public class Tools {
 	 * @throws IOException
 	 */
 	public static String ExecuteCMD_SU(String cmd) throws Exception {
+		return ExecuteCMD_SU(cmd, false);
+	}
+	
+	/**
+	 * Executes an Shell Command as Super User and returns the output
+	 * 
+	 * @param cmd
+	 *          The Command
+	 * @param check
+	 *          Throw if the command exits with a non zero status
+	 * @return Output String
+	 * @throws IOException
+	 */
+	public static String ExecuteCMD_SU(String cmd, boolean check) throws Exception {
 		StringBuilder data = new StringBuilder();
 		BufferedReader buffered_reader = null;
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin("su", cmd);
 		try {
+			RootShell shell = rootShell;
+			if (shell != null && !shell.IsAlive())
+				shell = ReplaceRootShell(shell);
+			if (shell != null) {
+				try {
+					return shell.Execute(cmd, span, check);
+				} finally {
+					if (!shell.IsAlive())
+						ReplaceRootShell(shell);
+				}
+			}
+			
 			Process su = Runtime.getRuntime().exec("su");
+			StreamDrain stderr = new StreamDrain(su.getErrorStream());
 			DataOutputStream outputStream = new DataOutputStream(su.getOutputStream());
 			outputStream.writeBytes(cmd + "\n");
 			outputStream.flush();
@@ -441,10 +629,14 @@ public class Tools {
 			while ((line = buffered_reader.readLine()) != null) {
 				data.append(line + "\n");
 			}
-			su.waitFor();
+			Check(check, su.waitFor(), stderr.Get(), span);
 		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_command_errors_total", "Commands that failed to run", "kind", "su").Increment();
+			span.Fail(e);
 			throw (e);
 		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_command_duration_seconds", "Time spent running commands", "kind", "su"), start);
 			try {
 				if (buffered_reader != null)
 					buffered_reader.close();
@@ -455,6 +647,90 @@ public class Tools {
 		return data.toString();
 	}
 	
+	/**
+	 * Records a command result in its span
+	 * 
+	 * @throws IOException
+	 *           If check is set and the status is not zero
+	 */
+	private static void Check(boolean check, int status, String stderr, Tracer.Span span) throws IOException {
+		span.SetResult(status, stderr);
+		if (check && status != 0)
+			throw new IOException("Exit status " + status + ": " + stderr.trim());
+	}
+	
+	/**
+	 * Reads a stream until its end on its own thread, so a command that fills
+	 * its stderr pipe does not block while stdout is read
+	 */
+	private static class StreamDrain extends Thread {
+		private final InputStream stream;
+		private String data = "";
+		
+		StreamDrain(InputStream stream) {
+			super("Tools-StreamDrain");
+			this.stream = stream;
+			setDaemon(true);
+			start();
+		}
+		
+		public void run() {
+			try {
+				data = ReadStream(stream);
+			} catch (IOException e) {
+				// Do Nothing
+			}
+		}
+		
+		/**
+		 * @return Stream Contents, once the stream ended
+		 * @throws InterruptedException
+		 */
+		String Get() throws InterruptedException {
+			join();
+			return data;
+		}
+	}
+	
+	/**
+	 * Reads a stream until its end
+	 * 
+	 * @param stream
+	 *          The InputStream
+	 * @return Stream Contents
+	 * @throws IOException
+	 */
+	private static String ReadStream(InputStream stream) throws IOException {
+		StringBuilder data = new StringBuilder();
+		BufferedReader buffered_reader = new BufferedReader(new InputStreamReader(stream));
+		try {
+			String line;
+			while ((line = buffered_reader.readLine()) != null) {
+				data.append(line + "\n");
+			}
+		} finally {
+			buffered_reader.close();
+		}
+		return data.toString();
+	}
+	
+	/**
+	 * Joins command arguments with spaces
+	 * 
+	 * @param cmd
+	 *          Command Arguments
+	 * @return Command Line
+	 */
+	private static String Join(String[] cmd) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < cmd.length; i++) {
+			if (i > 0)
+				line.append(' ');
+			line.append(cmd[i]);
+		}
+		return line.toString();
+	}
+	
 	/**
 	 * Reads a file and return its contents.
 	 * 
@@ -529,7 +805,11 @@ public class Tools {
 	 */
 	public static boolean CheckConnection(String address, String iface) {
 		try {
-			return Tools.ExecuteCMD(new String[] { "testping", address, iface }).contains("true");
+			boolean ok = Tools.ExecuteCMD(new String[] { "testping", address, iface }).contains("true");
+			ObservationRecorder recorder = ObservationRecorder.GetActive();
+			if (recorder != null)
+				recorder.RecordProbe(address, iface, ok);
+			return ok;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -0,0 +1,222 @@
+package com.tvs.mptcpmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Span based operation tracer.
+ *
+ * <BR>
+ * High level operations (interface up, path teardown, profile apply) open a
+ * span, and every command they run opens a child span carrying its arguments,
+ * exit status, stderr and duration. Finished spans are written to a
+ * preallocated ring buffer that can be dumped with {@link #Dump()}, or
+ * automatically to the log when a span fails (see {@link #SetDumpOnError}).
+ *
+ * <BR>
+ * When disabled, {@link #Begin} returns a shared no-op span, so tracing costs
+ * a volatile read per call.
+ *
+ * <BR>
+ * Usage: <i> <BR>
+ * Tracer.Span span = Tracer.Begin("interface_up", iface); <BR>
+ * try { ... } finally { span.End(); } </i>
+ *
+ */
+public class Tracer {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * A running operation. Spans must be ended on the thread that began them.
+	 */
+	public static class Span {
+		final long id, parentId, start;
+		final String name, args;
+		final Span parent;
+		int exitStatus;
+		String stderr;
+
+		Span(long id, Span parent, String name, String args) {
+			this.id = id;
+			this.parent = parent;
+			this.parentId = parent == null ? 0 : parent.id;
+			this.name = name;
+			this.args = args;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Sets the span result
+		 *
+		 * @param exitStatus
+		 *          Exit status (0 for success)
+		 * @param stderr
+		 *          Error output, may be null
+		 */
+		public void SetResult(int exitStatus, String stderr) {
+			this.exitStatus = exitStatus;
+			this.stderr = stderr;
+		}
+
+		/**
+		 * Marks the span as failed by an exception
+		 *
+		 * @param e
+		 *          The Exception
+		 */
+		public void Fail(Exception e) {
+			SetResult(-1, e.toString());
+		}
+
+		/**
+		 * Finishes the span and writes it to the ring buffer
+		 */
+		public void End() {
+			long duration = System.nanoTime() - start;
+			current.set(parent);
+			Record(this, duration);
+		}
+	}
+
+	private static final Span NOOP = new Span(0, null, "", "") {
+		public void SetResult(int exitStatus, String stderr) {
+		}
+
+		public void Fail(Exception e) {
+		}
+
+		public void End() {
+		}
+	};
+
+	private static volatile boolean enabled = false;
+	private static volatile boolean dumpOnError = false;
+
+	private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+	private static final AtomicLong nextId = new AtomicLong(1);
+	private static final AtomicLong written = new AtomicLong();
+
+	// Ring buffer, one slot per finished span
+	private static int capacity;
+	private static long[] ids, parentIds, starts, durations;
+	private static int[] exitStatuses;
+	private static String[] names, argss, stderrs;
+
+	static {
+		Allocate(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Enables or disables tracing
+	 *
+	 * @param flag
+	 */
+	public static void SetEnabled(boolean flag) {
+		enabled = flag;
+	}
+
+	/**
+	 * @return True if tracing is enabled
+	 */
+	public static boolean IsEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Dumps the ring buffer to the log whenever a span ends with a non zero exit
+	 * status
+	 *
+	 * @param flag
+	 */
+	public static void SetDumpOnError(boolean flag) {
+		dumpOnError = flag;
+	}
+
+	/**
+	 * Resizes and clears the ring buffer. Should be called before enabling.
+	 *
+	 * @param size
+	 *          Number of spans kept, at least one
+	 */
+	public static synchronized void SetCapacity(int size) {
+		Allocate(Math.max(size, 1));
+	}
+
+	/**
+	 * Opens a span as child of the current span of this thread
+	 *
+	 * @param name
+	 *          Operation Name
+	 * @param args
+	 *          Operation Arguments
+	 * @return The Span
+	 */
+	public static Span Begin(String name, String args) {
+		if (!enabled)
+			return NOOP;
+		Span span = new Span(nextId.getAndIncrement(), current.get(), name, args);
+		current.set(span);
+		return span;
+	}
+
+	/**
+	 * Dumps the ring buffer contents, oldest span first. <BR>
+	 * Each line is: <i>id parent start_us duration_us exit name [args] [stderr]</i>
+	 *
+	 * @return Dump Text
+	 */
+	public static synchronized String Dump() {
+		StringBuilder out = new StringBuilder();
+		long end = written.get();
+		long begin = Math.max(0, end - capacity);
+		for (long i = begin; i < end; i++) {
+			int slot = (int) (i % capacity);
+			out.append(ids[slot]).append(' ').append(parentIds[slot]).append(' ');
+			out.append(starts[slot] / 1000).append(' ').append(durations[slot] / 1000).append(' ');
+			out.append(exitStatuses[slot]).append(' ').append(names[slot]);
+			if (argss[slot] != null)
+				out.append(' ').append(argss[slot]);
+			if (stderrs[slot] != null && !stderrs[slot].isEmpty())
+				out.append(" [").append(stderrs[slot].trim().replace('\n', ' ')).append(']');
+			out.append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Clears the ring buffer
+	 */
+	public static synchronized void Clear() {
+		written.set(0);
+	}
+
+	private static void Allocate(int size) {
+		capacity = size;
+		ids = new long[size];
+		parentIds = new long[size];
+		starts = new long[size];
+		durations = new long[size];
+		exitStatuses = new int[size];
+		names = new String[size];
+		argss = new String[size];
+		stderrs = new String[size];
+		written.set(0);
+	}
+
+	private static void Record(Span span, long duration) {
+		synchronized (Tracer.class) {
+			int slot = (int) (written.getAndIncrement() % capacity);
+			ids[slot] = span.id;
+			parentIds[slot] = span.parentId;
+			starts[slot] = span.start;
+			durations[slot] = duration;
+			exitStatuses[slot] = span.exitStatus;
+			names[slot] = span.name;
+			argss[slot] = span.args;
+			stderrs[slot] = span.stderr;
+		}
+		if (dumpOnError && span.exitStatus != 0)
+			Log.e("Tracer", span.name + " failed:\n" + Dump());
+	}
+}
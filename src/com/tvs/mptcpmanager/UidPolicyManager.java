@@ -0,0 +1,187 @@
+package com.tvs.mptcpmanager;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.tvs.mptcpmanager.RouteManager.ROUTE_TABLES;
+
+/**
+ * Per application path pinning using fwmark policy routing
+ *
+ * <BR>
+ * Packets of an application (UID) are marked in the mangle table and an ip
+ * rule sends each mark to one routing table: <i> <BR>
+ * iptables -t mangle -A mptcp_uid -m owner --uid-owner $UID -j MARK
+ * --set-xmark $MARK/0xf0000000 <BR>
+ * ip rule add fwmark $MARK/0xf0000000 table $TABLE </i> <BR>
+ * Both are mirrored with ip6tables and ip -6 rule so IPv6 traffic of a pinned
+ * application is marked too. Tables without IPv6 routes fall through to the
+ * next rule.<BR>
+ * The mark is the table number in the top 4 bits, so it does not clash with
+ * the low bits Android netd uses for network ids. UIDs without a policy are
+ * not marked and may use every path.
+ *
+ * <BR>
+ * Policy changes are incremental: only the rules of the changed UIDs are
+ * removed and added, and all commands of a change go to one su call. A batch
+ * stops at its first failing command and the policies only change when it
+ * succeeds.
+ *
+ */
+public class UidPolicyManager {
+	public static final String CHAIN = "mptcp_uid";
+	public static final int MARK_MASK = 0xf0000000;
+	public static final int RULE_PRIORITY = 9000;
+	// Cleanup of what may not exist, never fails the batch
+	private static final String OPTIONAL = " 2>/dev/null || true";
+
+	private final SparseIntArray policies = new SparseIntArray();
+	private boolean installed = false;
+
+	/**
+	 * Gets the fwmark used for a table
+	 *
+	 * @param table
+	 *          Route Table
+	 * @return Mark value
+	 */
+	public static int MarkOf(ROUTE_TABLES table) {
+		return table.num << 28;
+	}
+
+	/**
+	 * Creates the mangle chain and one fwmark rule per route table
+	 */
+	public synchronized void Install() {
+		StringBuilder batch = new StringBuilder();
+		// Clean leftovers of a previous run first
+		batch.append(Tables("-t mangle -D OUTPUT -j " + CHAIN + OPTIONAL));
+		batch.append(Tables("-t mangle -F " + CHAIN + OPTIONAL));
+		batch.append(Tables("-t mangle -N " + CHAIN + OPTIONAL));
+		batch.append(Tables("-t mangle -A OUTPUT -j " + CHAIN));
+		for (ROUTE_TABLES table : ROUTE_TABLES.values()) {
+			String mark = Hex(MarkOf(table)) + "/" + Hex(MARK_MASK);
+			batch.append(Rule("del fwmark " + mark + " table " + table.num + OPTIONAL));
+			batch.append(Rule("add fwmark " + mark + " table " + table.num + " priority " + RULE_PRIORITY));
+		}
+		for (int i = 0; i < policies.size(); i++)
+			batch.append(UidRule("-A", policies.keyAt(i), policies.valueAt(i)));
+		if (Run("uid_policy_install", batch.toString()))
+			installed = true;
+	}
+
+	/**
+	 * Removes the mangle chain and the fwmark rules, whatever of them exists.
+	 * Policies are kept and will be applied again by {@link #Install()}.
+	 */
+	public synchronized void Uninstall() {
+		StringBuilder batch = new StringBuilder();
+		batch.append(Tables("-t mangle -D OUTPUT -j " + CHAIN + OPTIONAL));
+		batch.append(Tables("-t mangle -F " + CHAIN + OPTIONAL));
+		batch.append(Tables("-t mangle -X " + CHAIN + OPTIONAL));
+		for (ROUTE_TABLES table : ROUTE_TABLES.values())
+			batch.append(Rule("del fwmark " + Hex(MarkOf(table)) + "/" + Hex(MARK_MASK) + " table " + table.num + OPTIONAL));
+		Run("uid_policy_uninstall", batch.toString());
+		installed = false;
+	}
+
+	/**
+	 * Pins an application to a route table
+	 *
+	 * @param uid
+	 *          Application UID
+	 * @param table
+	 *          Route Table or null to allow every path
+	 */
+	public void SetPolicy(int uid, ROUTE_TABLES table) {
+		SparseArray<ROUTE_TABLES> change = new SparseArray<ROUTE_TABLES>(1);
+		change.put(uid, table);
+		SetPolicies(change);
+	}
+
+	/**
+	 * Changes the policy of several applications in one batch
+	 *
+	 * @param changes
+	 *          UID to Route Table, null values allow every path
+	 */
+	public synchronized void SetPolicies(SparseArray<ROUTE_TABLES> changes) {
+		StringBuilder batch = new StringBuilder();
+		SparseIntArray updated = policies.clone();
+		for (int i = 0; i < changes.size(); i++) {
+			int uid = changes.keyAt(i);
+			ROUTE_TABLES table = changes.valueAt(i);
+			int current = updated.get(uid, 0);
+			int wanted = table == null ? 0 : table.num;
+			if (current == wanted)
+				continue;
+			if (current != 0)
+				batch.append(UidRule("-D", uid, current));
+			if (wanted != 0) {
+				batch.append(UidRule("-A", uid, wanted));
+				updated.put(uid, wanted);
+			} else {
+				updated.delete(uid);
+			}
+		}
+		// Policies only change once the kernel has them
+		if (batch.length() > 0 && installed && !Run("uid_policy_update", batch.toString()))
+			return;
+		policies.clear();
+		for (int i = 0; i < updated.size(); i++)
+			policies.put(updated.keyAt(i), updated.valueAt(i));
+		Metrics.GetGauge("mptcp_uid_policies", "Applications pinned to a path").Set(policies.size());
+	}
+
+	/**
+	 * Gets the route table number an application is pinned to
+	 *
+	 * @param uid
+	 *          Application UID
+	 * @return Table number or 0 if it may use every path
+	 */
+	public synchronized int GetPolicy(int uid) {
+		return policies.get(uid, 0);
+	}
+
+	private static String UidRule(String action, int uid, int table) {
+		return Tables("-t mangle " + action + " " + CHAIN + " -m owner --uid-owner " + uid + " -j MARK --set-xmark " + Hex(table << 28) + "/" + Hex(MARK_MASK));
+	}
+
+	/**
+	 * @return The iptables command followed by the same ip6tables command
+	 */
+	private static String Tables(String args) {
+		return "iptables " + args + "\nip6tables " + args + "\n";
+	}
+
+	/**
+	 * @return The ip rule command followed by the same ip -6 rule command
+	 */
+	private static String Rule(String args) {
+		return "ip rule " + args + "\nip -6 rule " + args + "\n";
+	}
+
+	private static String Hex(int value) {
+		return "0x" + Integer.toHexString(value);
+	}
+
+	private static boolean Run(String op, String batch) {
+		long start = System.nanoTime();
+		Tracer.Span span = Tracer.Begin(op, null);
+		try {
+			// A subshell, so set -e stops the batch without ending a RootShell
+			Tools.ExecuteCMD_SU("(\nset -e\n" + batch + ")", true);
+			return true;
+		} catch (Exception e) {
+			Metrics.GetCounter("mptcp_route_errors_total", "Route operations that failed", "op", op).Increment();
+			Log.e("UidPolicyManager::" + op, "Batch failed", e);
+			span.Fail(e);
+			return false;
+		} finally {
+			span.End();
+			Metrics.ObserveSince(Metrics.GetHistogram("mptcp_route_duration_seconds", "Time spent on route operations", "op", op), start);
+		}
+	}
+}
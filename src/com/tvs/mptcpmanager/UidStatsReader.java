@@ -0,0 +1,217 @@
+package com.tvs.mptcpmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.tvs.mptcptypes.UidTrafficTable;
+
+/**
+ * Per application (UID) and per interface traffic accounting
+ *
+ * <BR>
+ * Streams <b>/proc/net/xt_qtaguid/stats</b> in one pass through a reused
+ * buffer, parsing numbers straight from bytes into {@link UidTrafficTable}s,
+ * so a sample of tens of thousands of lines creates almost no garbage: <i>
+ * <BR>
+ * idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes
+ * tx_packets ... </i> <BR>
+ * Only untagged rows (acct_tag 0x0) are counted, foreground and background
+ * counter sets are summed. Interface names are mapped to small indexes, see
+ * {@link #GetInterfaceName(int)}.
+ *
+ * <BR>
+ * The eBPF traffic maps that replace xt_qtaguid on Android 9+ can only be read
+ * through the bpf syscall, which is not reachable from Java, so
+ * {@link #IsAvailable()} is false on those devices.
+ *
+ */
+public class UidStatsReader {
+	public static final String STATS_FILE = "/proc/net/xt_qtaguid/stats";
+
+	private final String path;
+	private final byte[] buffer = new byte[64 * 1024];
+	private final List<byte[]> ifaceNames = new ArrayList<byte[]>();
+	private final byte[] field = new byte[64];
+
+	private UidTrafficTable previous = new UidTrafficTable(1024);
+	private UidTrafficTable current = new UidTrafficTable(1024);
+	private final UidTrafficTable delta = new UidTrafficTable(1024);
+	private RandomAccessFile file;
+
+	/**
+	 * Creates a reader of the default stats file
+	 */
+	public UidStatsReader() {
+		this(STATS_FILE);
+	}
+
+	/**
+	 * Creates a reader of a stats file
+	 *
+	 * @param path
+	 *          Stats file path
+	 */
+	public UidStatsReader(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @return True if the kernel exports xt_qtaguid stats
+	 */
+	public static boolean IsAvailable() {
+		return new File(STATS_FILE).canRead();
+	}
+
+	/**
+	 * Reads a new sample and computes the traffic since the previous one. The
+	 * first call returns the absolute counters.
+	 *
+	 * @return Delta table, valid until the next call
+	 * @throws IOException
+	 */
+	public synchronized UidTrafficTable Sample() throws IOException {
+		long start = System.nanoTime();
+		UidTrafficTable t = previous;
+		previous = current;
+		current = t;
+		Read(current);
+		UidTrafficTable.Delta(previous, current, delta);
+		Metrics.ObserveSince(Metrics.GetHistogram("mptcp_uid_stats_read_duration_seconds", "Time spent reading per UID traffic stats"), start);
+		return delta;
+	}
+
+	/**
+	 * @return Absolute counters of the last sample, valid until the next call
+	 */
+	public synchronized UidTrafficTable GetTotals() {
+		return current;
+	}
+
+	/**
+	 * Gets the interface name of an index
+	 *
+	 * @param index
+	 *          Interface Index
+	 * @return Interface Name
+	 */
+	public synchronized String GetInterfaceName(int index) {
+		return new String(ifaceNames.get(index));
+	}
+
+	/**
+	 * Gets the index of an interface name
+	 *
+	 * @param name
+	 *          Interface Name
+	 * @return Interface Index or -1 if never seen
+	 */
+	public synchronized int GetInterfaceIndex(String name) {
+		byte[] bytes = name.getBytes();
+		return FindInterface(bytes, bytes.length, false);
+	}
+
+	/**
+	 * Closes the stats file
+	 */
+	public synchronized void Close() {
+		try {
+			if (file != null)
+				file.close();
+		} catch (IOException e) {
+			// Do Nothing
+		}
+		file = null;
+	}
+
+	/**
+	 * Parses the whole stats file into a table
+	 *
+	 * @param out
+	 *          Output table, cleared first
+	 * @throws IOException
+	 */
+	private void Read(UidTrafficTable out) throws IOException {
+		out.Clear();
+		if (file == null)
+			file = new RandomAccessFile(path, "r");
+		file.seek(0);
+
+		// Per line state
+		int column = 0, fieldLength = 0, iface = -1, uid = 0;
+		boolean header = true, untagged = false;
+		long number = 0, rxBytes = 0, rxPackets = 0, txBytes = 0;
+
+		int n;
+		while ((n = file.read(buffer, 0, buffer.length)) > 0) {
+			for (int i = 0; i < n; i++) {
+				byte b = buffer[i];
+				if (b == ' ' || b == '\n') {
+					if (!header) {
+						switch (column) {
+							case 1:
+								iface = FindInterface(field, fieldLength, true);
+								break;
+							case 2:
+								untagged = fieldLength == 3 && field[0] == '0' && field[1] == 'x' && field[2] == '0';
+								break;
+							case 3:
+								uid = (int) number;
+								break;
+							case 5:
+								rxBytes = number;
+								break;
+							case 6:
+								rxPackets = number;
+								break;
+							case 7:
+								txBytes = number;
+								break;
+							case 8:
+								if (untagged && iface >= 0)
+									out.Add(uid, iface, rxBytes, rxPackets, txBytes, number);
+								break;
+						}
+					}
+					column++;
+					fieldLength = 0;
+					number = 0;
+					if (b == '\n') {
+						header = false;
+						column = 0;
+						untagged = false;
+						iface = -1;
+					}
+				} else {
+					if (column == 1 || column == 2) {
+						if (fieldLength < field.length)
+							field[fieldLength++] = b;
+					} else if (b >= '0' && b <= '9') {
+						number = number * 10 + (b - '0');
+					}
+				}
+			}
+		}
+	}
+
+	private int FindInterface(byte[] name, int length, boolean create) {
+		for (int i = 0; i < ifaceNames.size(); i++) {
+			byte[] known = ifaceNames.get(i);
+			if (known.length != length)
+				continue;
+			boolean equal = true;
+			for (int j = 0; j < length && equal; j++)
+				equal = known[j] == name[j];
+			if (equal)
+				return i;
+		}
+		if (!create)
+			return -1;
+		byte[] copy = new byte[length];
+		System.arraycopy(name, 0, copy, 0, length);
+		ifaceNames.add(copy);
+		return ifaceNames.size() - 1;
+	}
+}
@@ -0,0 +1,34 @@
+package com.tvs.mptcptypes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free monotonic counter.
+ */
+public class Counter {
+	private final AtomicLong value = new AtomicLong();
+
+	/**
+	 * Increments the counter by one
+	 */
+	public void Increment() {
+		value.incrementAndGet();
+	}
+
+	/**
+	 * Increments the counter
+	 *
+	 * @param delta
+	 *          Value to add
+	 */
+	public void Add(long delta) {
+		value.addAndGet(delta);
+	}
+
+	/**
+	 * @return Current Value
+	 */
+	public long Get() {
+		return value.get();
+	}
+}
@@ -0,0 +1,27 @@
+package com.tvs.mptcptypes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free gauge holding the last value set.
+ */
+public class Gauge {
+	private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+
+	/**
+	 * Sets the gauge value
+	 *
+	 * @param value
+	 *          The value
+	 */
+	public void Set(double value) {
+		bits.set(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * @return Current Value
+	 */
+	public double Get() {
+		return Double.longBitsToDouble(bits.get());
+	}
+}
@@ -0,0 +1,130 @@
+package com.tvs.mptcptypes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram.
+ *
+ * Values are split in power-of-two magnitudes, each one divided in
+ * <b>SUB_BUCKETS</b> linear buckets, so the relative error of any recorded
+ * value is bounded to 1/SUB_BUCKETS (12.5%) from 0 up to Long.MAX_VALUE, in
+ * the same way HdrHistogram does.
+ *
+ * Recording is a couple of shifts and one atomic increment, so it can be
+ * called from any thread in hot paths.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+	public static final int BUCKETS = (MAGNITUDES + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the bucket index of a value
+	 *
+	 * @param value
+	 *          The value (negative values are recorded as 0)
+	 * @return Bucket Index
+	 */
+	public static int BucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return value < 0 ? 0 : (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		int sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+		return magnitude * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the highest value that goes into a bucket
+	 *
+	 * @param bucket
+	 *          Bucket Index
+	 * @return Bucket upper bound
+	 */
+	public static long UpperBoundOf(int bucket) {
+		int magnitude = bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		if (magnitude == 0)
+			return sub;
+		long base = ((long) (SUB_BUCKETS + sub)) << (magnitude - 1);
+		return base + (1L << (magnitude - 1)) - 1;
+	}
+
+	/**
+	 * Records a value
+	 *
+	 * @param value
+	 *          The value
+	 */
+	public void Record(long value) {
+		counts.incrementAndGet(BucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	/**
+	 * @return Number of recorded values
+	 */
+	public long GetCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Sum of recorded values
+	 */
+	public long GetSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return Highest recorded value
+	 */
+	public long GetMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value at a quantile. The result is the upper bound of the
+	 * bucket where the quantile falls, capped to the highest recorded value.
+	 *
+	 * @param quantile
+	 *          Quantile between 0.0 and 1.0
+	 * @return Value at quantile or 0 if empty
+	 */
+	public long GetQuantile(double quantile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(UpperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears all recorded values
+	 */
+	public void Reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
@@ -0,0 +1,131 @@
+package com.tvs.mptcptypes;
+
+/**
+ * Immutable view of a network interface at a given time, with its gateway and
+ * byte rates. Unlike {@link NetworkInterface} it can be shared between threads
+ * and clients without copying.
+ */
+public class InterfaceSnapshot {
+	public final String Device; // Device
+	public final String Address; // MAC Address
+	public final String IPAddress; // IP Address
+	public final String NetworkMask; // Network Mask
+	public final String Broadcast; // Network Broadcast
+	public final String Gateway; // Gateway Address, empty if unknown
+
+	public final long RXBytes, RXPackets, RXErrors, RXDrops;
+	public final long TXBytes, TXPackets, TXErrors, TXDrops;
+	public final long RXRate, TXRate; // Bytes per second
+	public final long Time; // Sample time in milliseconds
+
+	/**
+	 * Initializes an InterfaceSnapshot with all fields
+	 */
+	public InterfaceSnapshot(String device, String address, String ipAddress, String networkMask, String broadcast, String gateway, long rxBytes, long rxPackets,
+	    long rxErrors, long rxDrops, long txBytes, long txPackets, long txErrors, long txDrops, long rxRate, long txRate, long time) {
+		Device = device;
+		Address = address;
+		IPAddress = ipAddress;
+		NetworkMask = networkMask;
+		Broadcast = broadcast;
+		Gateway = gateway;
+		RXBytes = rxBytes;
+		RXPackets = rxPackets;
+		RXErrors = rxErrors;
+		RXDrops = rxDrops;
+		TXBytes = txBytes;
+		TXPackets = txPackets;
+		TXErrors = txErrors;
+		TXDrops = txDrops;
+		RXRate = rxRate;
+		TXRate = txRate;
+		Time = time;
+	}
+
+	/**
+	 * Creates a snapshot of an updated NetworkInterface, computing the rates
+	 * from a previous snapshot of the same device.
+	 *
+	 * @param iface
+	 *          Updated NetworkInterface
+	 * @param gateway
+	 *          Gateway Address
+	 * @param previous
+	 *          Previous snapshot or null
+	 * @param time
+	 *          Sample time in milliseconds
+	 * @return InterfaceSnapshot
+	 */
+	public static InterfaceSnapshot Of(NetworkInterface iface, String gateway, InterfaceSnapshot previous, long time) {
+		long rx = iface.RXBytes & 0xFFFFFFFFL, tx = iface.TXBytes & 0xFFFFFFFFL;
+		long rxRate = 0, txRate = 0;
+		if (previous != null && time > previous.Time) {
+			rxRate = Delta(previous.RXBytes, rx) * 1000 / (time - previous.Time);
+			txRate = Delta(previous.TXBytes, tx) * 1000 / (time - previous.Time);
+		}
+		return new InterfaceSnapshot(iface.Device, iface.Address, iface.IPAddress, iface.NetworkMask, iface.Broadcast, gateway == null ? "" : gateway, rx,
+		    iface.RXPackets & 0xFFFFFFFFL, iface.RXErrors & 0xFFFFFFFFL, iface.RXDrops & 0xFFFFFFFFL, tx, iface.TXPackets & 0xFFFFFFFFL, iface.TXErrors & 0xFFFFFFFFL,
+		    iface.TXDrops & 0xFFFFFFFFL, rxRate, txRate, time);
+	}
+
+	/**
+	 * Creates a NetworkInterface with the snapshot data (counters are truncated
+	 * to int as in NetworkInterface)
+	 *
+	 * @return NetworkInterface
+	 */
+	public NetworkInterface ToNetworkInterface() {
+		NetworkInterface iface = new NetworkInterface(Device);
+		CopyTo(iface);
+		return iface;
+	}
+
+	/**
+	 * Copies the snapshot data into an existing NetworkInterface (counters are
+	 * truncated to int as in NetworkInterface)
+	 *
+	 * @param iface
+	 *          NetworkInterface to be updated
+	 */
+	public void CopyTo(NetworkInterface iface) {
+		iface.Device = Device;
+		iface.Address = Address;
+		iface.IPAddress = IPAddress;
+		iface.NetworkMask = NetworkMask;
+		iface.Broadcast = Broadcast;
+		iface.RXBytes = (int) RXBytes;
+		iface.RXPackets = (int) RXPackets;
+		iface.RXErrors = (int) RXErrors;
+		iface.RXDrops = (int) RXDrops;
+		iface.TXBytes = (int) TXBytes;
+		iface.TXPackets = (int) TXPackets;
+		iface.TXErrors = (int) TXErrors;
+		iface.TXDrops = (int) TXDrops;
+	}
+
+	/**
+	 * Checks if the addressing (IP, mask or gateway) differs from another
+	 * snapshot
+	 *
+	 * @param other
+	 *          Other snapshot
+	 * @return True if changed
+	 */
+	public boolean AddressChanged(InterfaceSnapshot other) {
+		return !IPAddress.equals(other.IPAddress) || !NetworkMask.equals(other.NetworkMask) || !Gateway.equals(other.Gateway);
+	}
+
+	private static long Delta(long before, long after) {
+		// 32 bit counters wrap
+		return after >= before ? after - before : after + 0x100000000L - before;
+	}
+
+	public String toString() {
+		String ret = "";
+		ret += "IFACE " + Device + "\n";
+		ret += "\tIP: " + IPAddress + " MASK: " + NetworkMask + " GW: " + Gateway + "\n";
+		ret += "\tMAC: " + Address + " TXBytes: " + TXBytes + " RXBytes: " + RXBytes + "\n";
+		ret += "\tTXRate: " + TXRate + " RXRate: " + RXRate + "\n";
+		return ret;
+	}
+}
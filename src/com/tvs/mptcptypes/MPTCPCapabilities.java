@@ -0,0 +1,150 @@
+package com.tvs.mptcptypes;
+
+/**
+ * Immutable description of the kernel MPTCP support.
+ *
+ * @see com.tvs.mptcpmanager.MPTCPProbe
+ */
+public class MPTCPCapabilities {
+	public enum Flavor {
+		NONE, // No MPTCP support
+		OUT_OF_TREE, // multipath-tcp.org kernel (net.mptcp.mptcp_*)
+		UPSTREAM // Linux 5.6+ (net.mptcp.enabled)
+	}
+
+	public final Flavor KernelFlavor;
+	public final String Version; // Example: Stable release v0.89.2
+	public final String ShortVersion; // Example: v0.89.2
+	public final String EnabledSysctl; // null if not available
+	public final String ChecksumSysctl; // null if not available
+	public final String SchedulerSysctl; // null if not available
+	public final String PathManagerSysctl; // null if not available
+
+	private final String[] schedulers;
+	private final String[] pathManagers;
+	private final String[] congestionControls;
+
+	/**
+	 * Initializes a MPTCPCapabilities Instance
+	 *
+	 * @param flavor
+	 *          Kernel Flavor
+	 * @param version
+	 *          Version String
+	 * @param enabledSysctl
+	 *          Sysctl that enables MPTCP
+	 * @param checksumSysctl
+	 *          Sysctl that enables the MPTCP checksum
+	 * @param schedulerSysctl
+	 *          Sysctl that selects the scheduler
+	 * @param pathManagerSysctl
+	 *          Sysctl that selects the path manager
+	 * @param schedulers
+	 *          Available Schedulers
+	 * @param pathManagers
+	 *          Available Path Managers
+	 * @param congestionControls
+	 *          Available TCP Congestion Controls
+	 */
+	public MPTCPCapabilities(Flavor flavor, String version, String enabledSysctl, String checksumSysctl, String schedulerSysctl, String pathManagerSysctl,
+	    String[] schedulers, String[] pathManagers, String[] congestionControls) {
+		KernelFlavor = flavor;
+		Version = version;
+		int space = version.lastIndexOf(' ');
+		ShortVersion = space >= 0 && flavor != Flavor.NONE ? version.substring(space + 1) : version;
+		EnabledSysctl = enabledSysctl;
+		ChecksumSysctl = checksumSysctl;
+		SchedulerSysctl = schedulerSysctl;
+		PathManagerSysctl = pathManagerSysctl;
+		this.schedulers = schedulers.clone();
+		this.pathManagers = pathManagers.clone();
+		this.congestionControls = congestionControls.clone();
+	}
+
+	/**
+	 * @return True if the kernel supports MPTCP
+	 */
+	public boolean IsSupported() {
+		return KernelFlavor != Flavor.NONE;
+	}
+
+	/**
+	 * @return Available MPTCP Schedulers
+	 */
+	public String[] GetSchedulers() {
+		return schedulers.clone();
+	}
+
+	/**
+	 * @return Available MPTCP Path Managers
+	 */
+	public String[] GetPathManagers() {
+		return pathManagers.clone();
+	}
+
+	/**
+	 * @return Available TCP Congestion Controls (includes the MPTCP coupled ones)
+	 */
+	public String[] GetCongestionControls() {
+		return congestionControls.clone();
+	}
+
+	/**
+	 * Checks if a scheduler is available
+	 *
+	 * @param name
+	 *          Scheduler Name
+	 * @return True if available
+	 */
+	public boolean HasScheduler(String name) {
+		return Contains(schedulers, name);
+	}
+
+	/**
+	 * Checks if a path manager is available
+	 *
+	 * @param name
+	 *          Path Manager Name
+	 * @return True if available
+	 */
+	public boolean HasPathManager(String name) {
+		return Contains(pathManagers, name);
+	}
+
+	/**
+	 * Checks if a congestion control is available
+	 *
+	 * @param name
+	 *          Congestion Control Name
+	 * @return True if available
+	 */
+	public boolean HasCongestionControl(String name) {
+		return Contains(congestionControls, name);
+	}
+
+	private static boolean Contains(String[] list, String name) {
+		for (String s : list)
+			if (s.equals(name))
+				return true;
+		return false;
+	}
+
+	public String toString() {
+		String ret = "";
+		ret += "MPTCP " + KernelFlavor + " " + Version + "\n";
+		ret += "\tSchedulers: " + Join(schedulers) + "\n";
+		ret += "\tPath Managers: " + Join(pathManagers) + "\n";
+		ret += "\tCongestion Controls: " + Join(congestionControls) + "\n";
+		return ret;
+	}
+
+	private static String Join(String[] list) {
+		StringBuilder ret = new StringBuilder();
+		for (String s : list) {
+			if (ret.length() > 0)
+				ret.append(' ');
+			ret.append(s);
+		}
+		return ret.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package com.tvs.mptcptypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of paths to configure at once. Each entry says which routing table an
+ * interface uses and how MPTCP should use it.
+ */
+public class PathProfile {
+	public enum Mode {
+		DOWN, // Path torn down, multipath off
+		ON, // Path up, multipath on
+		BACKUP // Path up, multipath backup
+	}
+
+	/**
+	 * One path of the profile
+	 */
+	public static class Entry {
+		public final String Device; // Network Interface
+		public final String Table; // Routing Table (ethernet, wireless or modem)
+		public final String Gateway; // Gateway, empty to look it up
+		public final Mode PathMode;
+
+		public Entry(String device, String table, String gateway, Mode mode) {
+			Device = device;
+			Table = table;
+			Gateway = gateway == null ? "" : gateway;
+			PathMode = mode;
+		}
+	}
+
+	public final String Name;
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Initializes an empty PathProfile
+	 *
+	 * @param name
+	 *          Profile Name
+	 */
+	public PathProfile(String name) {
+		Name = name;
+	}
+
+	/**
+	 * Adds a path to the profile
+	 *
+	 * @param device
+	 *          Network Interface
+	 * @param table
+	 *          Routing Table
+	 * @param gateway
+	 *          Gateway, empty or null to look it up
+	 * @param mode
+	 *          Path Mode
+	 * @return This profile
+	 */
+	public PathProfile Add(String device, String table, String gateway, Mode mode) {
+		entries.add(new Entry(device, table, gateway, mode));
+		return this;
+	}
+
+	/**
+	 * @return Profile Entries
+	 */
+	public List<Entry> GetEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+}
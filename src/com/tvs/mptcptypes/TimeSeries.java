@@ -0,0 +1,94 @@
+package com.tvs.mptcptypes;
+
+/**
+ * Fixed size ring of timestamped samples. When full, the oldest sample is
+ * overwritten.
+ *
+ * Not thread safe, the owner should synchronize writes and reads.
+ */
+public class TimeSeries {
+	private final long[] times;
+	private final long[] values;
+	private int head = 0, size = 0;
+
+	/**
+	 * Initializes an empty TimeSeries
+	 *
+	 * @param capacity
+	 *          Maximum number of samples kept
+	 * @throws IllegalArgumentException
+	 *           If capacity is less than 1
+	 */
+	public TimeSeries(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1, got " + capacity);
+		times = new long[capacity];
+		values = new long[capacity];
+	}
+
+	/**
+	 * Adds a sample
+	 *
+	 * @param time
+	 *          Sample Time in milliseconds
+	 * @param value
+	 *          Sample Value
+	 */
+	public void Add(long time, long value) {
+		times[head] = time;
+		values[head] = value;
+		head = (head + 1) % times.length;
+		if (size < times.length)
+			size++;
+	}
+
+	/**
+	 * @return Number of samples
+	 */
+	public int Size() {
+		return size;
+	}
+
+	/**
+	 * Gets a sample time
+	 *
+	 * @param index
+	 *          Sample Index, 0 is the oldest
+	 * @return Sample Time
+	 */
+	public long GetTime(int index) {
+		return times[Slot(index)];
+	}
+
+	/**
+	 * Gets a sample value
+	 *
+	 * @param index
+	 *          Sample Index, 0 is the oldest
+	 * @return Sample Value
+	 */
+	public long GetValue(int index) {
+		return values[Slot(index)];
+	}
+
+	/**
+	 * @return Newest sample value or -1 if empty
+	 */
+	public long Last() {
+		return size == 0 ? -1 : GetValue(size - 1);
+	}
+
+	/**
+	 * Empty the series
+	 */
+	public void Clear() {
+		head = 0;
+		size = 0;
+	}
+
+	private int Slot(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+		return (head - size + index + times.length) % times.length;
+	}
+}
@@ -0,0 +1,214 @@
+package com.tvs.mptcptypes;
+
+import java.util.Arrays;
+
+/**
+ * Traffic counters keyed by (uid, interface index).
+ *
+ * <BR>
+ * Open addressing hash table over primitive arrays, so filling it with tens of
+ * thousands of entries creates no garbage once it has grown. Each entry holds
+ * RX bytes, RX packets, TX bytes and TX packets.
+ *
+ * <BR>
+ * Iterate with: <i> <BR>
+ * for (int s = 0; s &lt; table.Capacity(); s++) if (table.Used(s)) ... </i>
+ */
+public class UidTrafficTable {
+	public static final int RX_BYTES = 0, RX_PACKETS = 1, TX_BYTES = 2, TX_PACKETS = 3;
+	private static final int COUNTERS = 4;
+	private static final long EMPTY = -1;
+
+	private long[] keys;
+	private long[] values;
+	private int size = 0;
+
+	/**
+	 * Initializes an empty table
+	 *
+	 * @param expected
+	 *          Expected number of entries
+	 */
+	public UidTrafficTable(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+		keys = new long[capacity];
+		values = new long[capacity * COUNTERS];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Adds to the counters of an entry, creating it if needed
+	 *
+	 * @param uid
+	 *          Application UID
+	 * @param iface
+	 *          Interface Index
+	 * @param rxBytes
+	 * @param rxPackets
+	 * @param txBytes
+	 * @param txPackets
+	 */
+	public void Add(int uid, int iface, long rxBytes, long rxPackets, long txBytes, long txPackets) {
+		int slot = Slot(Key(uid, iface), true);
+		int base = slot * COUNTERS;
+		values[base + RX_BYTES] += rxBytes;
+		values[base + RX_PACKETS] += rxPackets;
+		values[base + TX_BYTES] += txBytes;
+		values[base + TX_PACKETS] += txPackets;
+	}
+
+	/**
+	 * Gets a counter
+	 *
+	 * @param uid
+	 *          Application UID
+	 * @param iface
+	 *          Interface Index
+	 * @param counter
+	 *          RX_BYTES, RX_PACKETS, TX_BYTES or TX_PACKETS
+	 * @return Counter value, 0 if there is no entry
+	 */
+	public long Get(int uid, int iface, int counter) {
+		int slot = Slot(Key(uid, iface), false);
+		return slot < 0 ? 0 : values[slot * COUNTERS + counter];
+	}
+
+	/**
+	 * @return Number of entries
+	 */
+	public int Size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of slots, for iteration
+	 */
+	public int Capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 *          Slot Index
+	 * @return True if the slot holds an entry
+	 */
+	public boolean Used(int slot) {
+		return keys[slot] != EMPTY;
+	}
+
+	/**
+	 * @param slot
+	 *          Slot Index
+	 * @return UID of the entry in the slot
+	 */
+	public int UidAt(int slot) {
+		return (int) (keys[slot] >>> 16);
+	}
+
+	/**
+	 * @param slot
+	 *          Slot Index
+	 * @return Interface Index of the entry in the slot
+	 */
+	public int InterfaceAt(int slot) {
+		return (int) (keys[slot] & 0xFFFF);
+	}
+
+	/**
+	 * @param slot
+	 *          Slot Index
+	 * @param counter
+	 *          RX_BYTES, RX_PACKETS, TX_BYTES or TX_PACKETS
+	 * @return Counter of the entry in the slot
+	 */
+	public long CounterAt(int slot, int counter) {
+		return values[slot * COUNTERS + counter];
+	}
+
+	/**
+	 * Removes every entry, keeping the allocated arrays
+	 */
+	public void Clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, 0);
+		size = 0;
+	}
+
+	/**
+	 * Computes <b>current - previous</b> into <b>out</b>. Entries whose counters
+	 * went backwards (counter reset) count from zero.
+	 *
+	 * @param previous
+	 *          Older sample
+	 * @param current
+	 *          Newer sample
+	 * @param out
+	 *          Output table, cleared first
+	 */
+	public static void Delta(UidTrafficTable previous, UidTrafficTable current, UidTrafficTable out) {
+		out.Clear();
+		for (int s = 0; s < current.keys.length; s++) {
+			long key = current.keys[s];
+			if (key == EMPTY)
+				continue;
+			int prevSlot = previous.Slot(key, false);
+			int base = s * COUNTERS;
+			int outSlot = -1;
+			for (int c = 0; c < COUNTERS; c++) {
+				long now = current.values[base + c];
+				long before = prevSlot < 0 ? 0 : previous.values[prevSlot * COUNTERS + c];
+				long delta = now >= before ? now - before : now;
+				if (delta != 0) {
+					if (outSlot < 0)
+						outSlot = out.Slot(key, true);
+					out.values[outSlot * COUNTERS + c] = delta;
+				}
+			}
+		}
+	}
+
+	private static long Key(int uid, int iface) {
+		return ((uid & 0xFFFFFFFFL) << 16) | (iface & 0xFFFF);
+	}
+
+	private static int Hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private int Slot(long key, boolean create) {
+		int mask = keys.length - 1;
+		int slot = Hash(key) & mask;
+		while (true) {
+			long k = keys[slot];
+			if (k == key)
+				return slot;
+			if (k == EMPTY) {
+				if (!create)
+					return -1;
+				if ((size + 1) * 4 > keys.length * 3) {
+					Grow();
+					return Slot(key, true);
+				}
+				keys[slot] = key;
+				size++;
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void Grow() {
+		long[] oldKeys = keys, oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[keys.length * COUNTERS];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldKeys[s] == EMPTY)
+				continue;
+			int slot = Slot(oldKeys[s], true);
+			System.arraycopy(oldValues, s * COUNTERS, values, slot * COUNTERS, COUNTERS);
+		}
+	}
+}